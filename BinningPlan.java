@@ -0,0 +1,89 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ *
+ * @author Mikhail Shipilin
+ * Plan of binning of detector rows (or L-cuts) into slices. If integration intervals
+ * of neighbouring projections overlap, the same row is binned into slices of several
+ * projections. The plan groups slices by their source, so every source is read and
+ * transformed once per image and its pixels are added to all slices which need it.
+ *
+ * Sources are numbered in ascending order of their keys (e.g. detector rows), so the
+ * rows are read from images in the order of the file.
+ */
+public class BinningPlan {
+    private final int[][] slices; // Indices of slices fed by each source
+
+    /**
+     * @param keys key of the source of every slice, slices with equal keys have the same source
+     */
+    public BinningPlan(long[] keys){
+        Map<Long, List<Integer>> groups = new TreeMap<Long, List<Integer>>();
+        for(int j = 0; j < keys.length; j++){
+            List<Integer> group = groups.get(keys[j]);
+            if(group == null){
+                group = new ArrayList<Integer>();
+                groups.put(keys[j], group);
+            }
+            group.add(j);
+        }
+        slices = new int[groups.size()][];
+        int s = 0;
+        for(List<Integer> group : groups.values()){
+            slices[s] = new int[group.size()];
+            for(int i = 0; i < group.size(); i++){
+                slices[s][i] = group.get(i);
+            }
+            s++;
+        }
+    }
+
+    /**
+     * Creates plan in which slices of the same detector row share the source
+     * @param rows detector row of every slice
+     */
+    public static BinningPlan byRows(int[] rows){
+        long[] keys = new long[rows.length];
+        for(int j = 0; j < rows.length; j++){
+            keys[j] = rows[j];
+        }
+        return new BinningPlan(keys);
+    }
+
+    /**
+     * Creates plan in which slices at the same L-value share the source (L-cut)
+     * @param lValues L-value of every slice
+     * @param tolerance L-values closer than this are considered the same
+     */
+    public static BinningPlan byLValues(double[] lValues, double tolerance){
+        long[] keys = new long[lValues.length];
+        for(int j = 0; j < lValues.length; j++){
+            keys[j] = Math.round(lValues[j]/tolerance);
+        }
+        return new BinningPlan(keys);
+    }
+
+    /**
+     * @return number of sources
+     */
+    public int size(){
+        return slices.length;
+    }
+
+    /**
+     * @return the first slice fed by the source, it represents the source (e.g. its row)
+     */
+    public int getSlice(int source){
+        return slices[source][0];
+    }
+
+    /**
+     * @return all slices fed by the source
+     */
+    public int[] getSlices(int source){
+        return slices[source];
+    }
+}
@@ -0,0 +1,125 @@
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ *
+ * @author Mikhail Shipilin
+ * Grid of hk-points which can be filled by several threads at once without locks.
+ * Intensities are stored as bits of float values in AtomicIntegerArray and are
+ * updated by compare-and-set loops (maximum or addition), numbers of pixels are
+ * incremented atomically. One grid is shared by all worker threads instead of
+ * a private copy of projection for every thread (see HKprojection.addDataSet()
+ * and HKprojection.mergeGrid()).
+ *
+ * The grid can be split into stripes: every thread writes into its own stripe
+ * (thread number modulo number of stripes), which reduces contention of threads
+ * on the same points at the cost of memory. Stripes are combined when values
+ * are read.
+ */
+public class ConcurrentHKGrid {
+    private final int size; // Number of points in one stripe
+    private final int stripes; // Number of stripes
+    private final HKprojection.Aggregation aggregation;
+    private final AtomicIntegerArray intensities; // Float bits of maximal or summed intensities (not used for COUNT)
+    private final AtomicIntegerArray counts; // Numbers of pixels (for MEAN and COUNT only)
+
+    /**
+     * Creates grid filled by zeros
+     * @param size number of points
+     * @param aggregation way of combining pixels in one point
+     * @param stripes number of stripes
+     */
+    public ConcurrentHKGrid(int size, HKprojection.Aggregation aggregation, int stripes){
+        if((long)size*stripes > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Grid of " + size + " points in " + stripes + " stripes is too large.");
+        this.size = size;
+        this.stripes = stripes;
+        this.aggregation = aggregation;
+        boolean hasIntensities = aggregation != HKprojection.Aggregation.COUNT;
+        boolean hasCounts = (aggregation == HKprojection.Aggregation.MEAN) || (aggregation == HKprojection.Aggregation.COUNT);
+        intensities = hasIntensities ? new AtomicIntegerArray(size*stripes) : null;
+        counts = hasCounts ? new AtomicIntegerArray(size*stripes) : null;
+    }
+
+    public int getSize(){
+        return size;
+    }
+
+    public int getStripes(){
+        return stripes;
+    }
+
+    /**
+     * @return size of grid in bytes
+     */
+    public long getDataSize(){
+        return 4L*size*stripes*(((intensities != null) ? 1 : 0) + ((counts != null) ? 1 : 0));
+    }
+
+    /**
+     * Adds intensity of one pixel to the point. Can be called from several threads at once.
+     * @param stripe number of thread (is taken modulo number of stripes)
+     * @param index index of point
+     * @param intensity intensity of pixel
+     */
+    public void add(int stripe, int index, float intensity){
+        int position = (stripe % stripes)*size + index;
+        switch(aggregation){
+            case MAX:
+                for(;;){
+                    int bits = intensities.get(position);
+                    if((Float.intBitsToFloat(bits) >= intensity) ||
+                       intensities.compareAndSet(position, bits, Float.floatToIntBits(intensity)))
+                        break;
+                }
+                break;
+            case SUM:
+                addIntensity(position, intensity);
+                break;
+            case MEAN:
+                addIntensity(position, intensity);
+                counts.incrementAndGet(position);
+                break;
+            default:
+                counts.incrementAndGet(position);
+                break;
+        }
+    }
+
+    private void addIntensity(int position, float intensity){
+        for(;;){
+            int bits = intensities.get(position);
+            if(intensities.compareAndSet(position, bits, Float.floatToIntBits(Float.intBitsToFloat(bits) + intensity)))
+                break;
+        }
+    }
+
+    /**
+     * @return maximal or summed intensity of the point over all stripes (0 for COUNT)
+     */
+    public float getIntensity(int index){
+        if(intensities == null)
+            return 0;
+        float value = Float.intBitsToFloat(intensities.get(index));
+        for(int s = 1; s < stripes; s++){
+            float stripeValue = Float.intBitsToFloat(intensities.get(s*size + index));
+            if(aggregation == HKprojection.Aggregation.MAX)
+                value = Math.max(value, stripeValue);
+            else
+                value += stripeValue;
+        }
+        return value;
+    }
+
+    /**
+     * @return number of pixels in the point over all stripes (0 for MAX and SUM)
+     */
+    public int getCount(int index){
+        if(counts == null)
+            return 0;
+        int count = 0;
+        for(int s = 0; s < stripes; s++){
+            count += counts.get(s*size + index);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ *
+ * @author Mikhail Shipilin
+ * Contains total correction factors (see ExperimentHandler.getTotalCorrectionFactor())
+ * of every detector pixel. Correction factors depend only on experimental geometry,
+ * so the map can be used for all images taken with the same settings.
+ */
+public class CorrectionMap {
+    private final int width, height; // Detector size in pixels
+    private final float[] inverseFactors; // 1/factor of pixel (x;z) is stored at index z*width + x
+                                          // (0 if the factor is not defined)
+
+    protected CorrectionMap(int width, int height, double[] factors){
+        this.width = width;
+        this.height = height;
+        this.inverseFactors = new float[factors.length];
+        for(int i = 0; i < factors.length; i++){
+            if((factors[i] > 0) && !Double.isInfinite(factors[i]))
+                inverseFactors[i] = (float)(1/factors[i]);
+        }
+    }
+
+    /**
+     * Creates the map from already inverted correction factors (e.g. loaded from cache)
+     */
+    protected CorrectionMap(int width, int height, float[] inverseFactors){
+        this.width = width;
+        this.height = height;
+        this.inverseFactors = inverseFactors;
+    }
+
+    public int getWidth(){
+        return width;
+    }
+
+    public int getHeight(){
+        return height;
+    }
+
+    /**
+     * @return true if pixel (x;z) is covered by the map
+     */
+    public boolean contains(int x, int z){
+        return (x >= 0) && (x < width) && (z >= 0) && (z < height);
+    }
+
+    public double getFactor(int x, int z){
+        return 1/(double)inverseFactors[z*width + x];
+    }
+
+    protected float[] getInverseFactorsArray(){
+        return inverseFactors;
+    }
+
+    /**
+     * Divides intensities of the detector row pixels by corresponding correction factors.
+     * Pixels, for which the correction factor is not defined (e.g. in the vertical
+     * plane of incident beam), get zero intensity.
+     * @param z vertical pixel position from top left corner
+     * @param pixels intensities of row pixels starting from x = 0
+     */
+    public void correctRow(int z, double[] pixels){
+        GeometryKernels.correct(pixels, inverseFactors, z*width, Math.min(pixels.length, width));
+    }
+}
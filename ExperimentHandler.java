@@ -39,6 +39,11 @@ public class ExperimentHandler {
     private double xPixelSize, zPixelSize; // Pixel sizes in mm
     private double zPixelSizeRLU; // Contains the vertical size of a pixel in reciprocal units
     private boolean preferencesLoaded = false; // True, if all necessary preferences were loaded
+    private GeometryMap geometryMap; // Reciprocal coordinates of all detector pixels at omega = 0 (created on demand)
+    private CorrectionMap correctionMap; // Total correction factors of all detector pixels (created on demand)
+    private File cacheDirectory = GeometryCache.getDefaultDirectory(); // Directory for files with calculated maps chosen by user
+                                                                       // (null - no cache)
+    private volatile InverseTransform inverseTransform; // Inverted transformation matrix for the last used omega
    
     
     /**
@@ -190,6 +195,155 @@ public class ExperimentHandler {
         return omegaShift;
     }
     
+    /**
+     * Returns the ratio a1/a2 of in-plane lattice parameters. It is needed to
+     * rotate h- and k-coordinates around the surface normal when a1 != a2
+     */
+    public double getInPlaneLatticeRatio(){
+        return latticeParameters[0]/latticeParameters[1];
+    }
+    
+    /**
+     * Sets the directory where calculated geometry and correction maps are stored
+     * between sessions
+     * @param directory directory for cache files or null if maps shouldn't be stored
+     */
+    public void setCacheDirectory(File directory){
+        cacheDirectory = directory;
+    }
+    
+    /**
+     * Returns the values of all parameters that define the geometry and correction maps
+     */
+    private double[] getGeometryParameters(){
+        return new double[] {photonEnergy, horizontalPolarization, omegaShift, incidentAngle, detectorDistance, 
+                             latticeParameters[0], latticeParameters[1], latticeParameters[2],
+                             latticeAngles[0], latticeAngles[1], latticeAngles[2],
+                             xDetectorSize, zDetectorSize, xDetectorSizeInPixels, zDetectorSizeInPixels,
+                             xCenter, zCenter};
+    }
+    
+    /**
+     * @return cache for current parameters or null if maps shouldn't be stored
+     */
+    private GeometryCache getGeometryCache(){
+        if(cacheDirectory == null)
+            return null;
+        try{
+            return new GeometryCache(cacheDirectory, this.getGeometryParameters());
+        }
+        catch(Exception e){
+            return null;
+        }
+    }
+    
+    /**
+     * Returns the map of reciprocal space coordinates of all detector pixels
+     * at zero azimuthal angle. The map is calculated at the first call and is 
+     * reused afterwards, i.e. it is calculated once per loaded preferences file.
+     * Calculated map is also stored on disk and is loaded from there in the next 
+     * sessions with the same experiment parameters.
+     * @return map of [h,k,l] coordinates for the whole detector
+     */
+    public synchronized GeometryMap getGeometryMap() throws Exception {
+        if(geometryMap == null){
+            GeometryCache cache = this.getGeometryCache();
+            if(cache != null){
+                try{
+                    geometryMap = cache.loadGeometryMap(this.getInPlaneLatticeRatio());
+                }
+                catch(Exception e){
+                    //Broken cache file will be overwritten
+                }
+            }
+            if(geometryMap == null){
+                geometryMap = calculateGeometryMap();
+                if(cache != null){
+                    try{
+                        cache.saveGeometryMap(geometryMap);
+                    }
+                    catch(Exception e){
+                        //The map will be recalculated next time
+                    }
+                }
+            }
+        }
+        return geometryMap;
+    }
+    
+    /**
+     * Returns the map of total correction factors of all detector pixels. The map is 
+     * calculated at the first call and is reused afterwards. Calculated map is also
+     * stored on disk the same way as geometry map.
+     * @return map of correction factors for the whole detector
+     */
+    public synchronized CorrectionMap getCorrectionMap(){
+        if(correctionMap == null){
+            GeometryCache cache = this.getGeometryCache();
+            if(cache != null){
+                try{
+                    correctionMap = cache.loadCorrectionMap();
+                }
+                catch(Exception e){
+                    //Broken cache file will be overwritten
+                }
+            }
+            if(correctionMap == null){
+                correctionMap = calculateCorrectionMap();
+                if(cache != null){
+                    try{
+                        cache.saveCorrectionMap(correctionMap);
+                    }
+                    catch(Exception e){
+                        //The map will be recalculated next time
+                    }
+                }
+            }
+        }
+        return correctionMap;
+    }
+    
+    /**
+     * Calculates total correction factors of all detector pixels
+     * @return map of correction factors for the whole detector
+     */
+    private CorrectionMap calculateCorrectionMap(){
+        int width = this.getDetectorSizeInPixelsX();
+        int height = this.getDetectorSizeInPixelsZ();
+        double[] factors = new double[width*height];
+        for(int z = 0; z < height; z++){
+            for(int x = 0; x < width; x++){
+                factors[z*width + x] = this.getTotalCorrectionFactor(x, z);
+            }
+        }
+        return new CorrectionMap(width, height, factors);
+    }
+    
+    /**
+     * Transforms all detector pixels to reciprocal space at omega = 0. The transformation
+     * matrix is inverted only once, for each pixel only the momentum transfer vector
+     * is calculated and multiplied by the inverted matrix (see rowToHKL()).
+     * @return map of [h,k,l] coordinates for the whole detector
+     */
+    private GeometryMap calculateGeometryMap() throws Exception {
+        int width = this.getDetectorSizeInPixelsX();
+        int height = this.getDetectorSizeInPixelsZ();
+        float[] h = new float[width*height];
+        float[] k = new float[width*height];
+        float[] l = new float[width*height];
+        double[] rowH = new double[width], rowK = new double[width], rowL = new double[width];
+        for(int z = 0; z < height; z++){
+            this.rowToHKL(z, 0, width, 0, rowH, rowK, rowL);
+            for(int x = 0; x < width; x++){
+                int index = z*width + x;
+                h[index] = (float)rowH[x];
+                k[index] = (float)rowK[x];
+                l[index] = (float)rowL[x];
+            }
+        }
+        return new GeometryMap(width, height, h, k, l, this.getInPlaneLatticeRatio());
+    }
+    
         /**
      * @param x horizontal pixel position from top left corner
      * @param imgWidth horizontal resolution of image
@@ -267,57 +421,193 @@ public class ExperimentHandler {
     public double[] labToHKL(int x, int z, double omega) throws Exception {
         double deltaX = this.xPixTOmm(x); // Horizontal distance to pixel from the center in mm 
         double deltaZ = this.zPixTOmm(z); // Vertical distance to pixel from the center in mm
-        // Coordinates of pixel in lab coordinates system
-        Matrix pixInLab = new Matrix(3, 1);
-        pixInLab.setValueAt(0, 0, deltaX);
-        pixInLab.setValueAt(1, 0, detectorDistance);
-        pixInLab.setValueAt(2, 0, deltaZ);
-        // Reciprocal lattice matrix b
-        Matrix b = new Matrix(3, 3);
-        b.setValueAt(0, 0, 2*Math.PI/latticeParameters[0]);
-        b.setValueAt(1, 1, 2*Math.PI/latticeParameters[1]);
-        b.setValueAt(2, 2, 2*Math.PI/latticeParameters[2]);
-        // Orientation matrix uAngle (accounts the initial azimuthal shift)
-        Matrix uAngle = new Matrix(3, 3);
-        uAngle.setValueAt(0, 0, Math.cos(omegaShift*Math.PI/180));
-        uAngle.setValueAt(0, 1, -1*Math.sin(omegaShift*Math.PI/180));
-        uAngle.setValueAt(1, 0, Math.sin(omegaShift*Math.PI/180));
-        uAngle.setValueAt(1, 1, Math.cos(omegaShift*Math.PI/180));
-        uAngle.setValueAt(2, 2, 1);
-        // Rotational matrix sMu (accounts incident angle)
-        Matrix sMu = new Matrix(3, 3);
-        sMu.setValueAt(0, 0, 1);
-        sMu.setValueAt(1, 1, Math.cos(incidentAngle*Math.PI/180));
-        sMu.setValueAt(1, 2, -1*Math.sin(incidentAngle*Math.PI/180));
-        sMu.setValueAt(2, 1, Math.sin(incidentAngle*Math.PI/180));
-        sMu.setValueAt(2, 2, Math.cos(incidentAngle*Math.PI/180));
-        // Rotational matrix sOmega (accounts azimuthal angle of rotation)
-        Matrix sOmega = new Matrix(3, 3);
-        sOmega.setValueAt(0, 0, Math.cos(omega*Math.PI/180));
-        sOmega.setValueAt(0, 1, -1*Math.sin(omega*Math.PI/180));
-        sOmega.setValueAt(1, 0, Math.sin(omega*Math.PI/180));
-        sOmega.setValueAt(1, 1, Math.cos(omega*Math.PI/180));
-        sOmega.setValueAt(2, 2, 1);
-        // Additional matrix for calculations
-        Matrix temp = new Matrix(3, 1);
-        //pixInLab.setValueAt(1, 0, 1);
-        temp.setValueAt(1, 0, 1);
-        
+        double norm = 1/Math.sqrt(deltaX*deltaX + detectorDistance*detectorDistance + deltaZ*deltaZ);
         // Calculation of momentum transfer vector
-        Matrix q;
-        Matrix matHKL;
+        Vec3 q = new Vec3(deltaX*norm, detectorDistance*norm - 1, deltaZ*norm).multiplyByConstant(2*Math.PI/this.getWaveLength());
         double[] hkl = new double[3];
-        try{
-            q = (Matrix.subtract(pixInLab.multiplyByConstant(1/Math.sqrt(deltaX*deltaX +
-                 detectorDistance*detectorDistance + deltaZ*deltaZ)), temp)).multiplyByConstant(2*Math.PI/this.getWaveLength());
-            matHKL = Matrix.leftDivide(Matrix.multiply(sMu, Matrix.multiply(sOmega, Matrix.multiply(uAngle, b))), q);
-            for(int i = 0; i < hkl.length; i++){
-                hkl[i] = matHKL.getValueAt(i, 0);
-            }
+        this.getTransformationMatrix(omega).inverse().transform(q).toArray(hkl, 0);
+        return hkl;         
+    }
+    
+    /**
+     * Allocation-free version of labToHKL(x, z, omega) giving the same result.
+     * The inverted transformation matrix (sMu*sOmega*uAngle*b)^-1 is composed in
+     * closed form from the transposed rotations and is cached for the last used omega,
+     * so for the pixels of one image no objects are created and no matrices are inverted.
+     * @param x horizontal pixel position from top left corner
+     * @param z vertical pixel position from top left corner
+     * @param omega current azimuthal angle of sample rotation with respect to 0 starting angle
+     * @param hkl array of length 3 which is filled with [h,k,l] coordinates
+     */
+    public void labToHKL(int x, int z, double omega, double[] hkl){
+        InverseTransform t = this.getInverseTransform(omega);
+        double deltaX = this.xPixTOmm(x); // Horizontal distance to pixel from the center in mm 
+        double deltaZ = this.zPixTOmm(z); // Vertical distance to pixel from the center in mm
+        double norm = 1/Math.sqrt(deltaX*deltaX + detectorDistance*detectorDistance + deltaZ*deltaZ);
+        // Momentum transfer vector
+        double qx = deltaX*norm*t.waveVector;
+        double qy = (detectorDistance*norm - 1)*t.waveVector;
+        double qz = deltaZ*norm*t.waveVector;
+        hkl[0] = t.m00*qx + t.m01*qy + t.m02*qz;
+        hkl[1] = t.m10*qx + t.m11*qy + t.m12*qz;
+        hkl[2] = t.m20*qx + t.m21*qy + t.m22*qz;
+    }
+    
+    /**
+     * Inverse of labToHKL(): finds azimuthal angles and detector pixels at which the 
+     * point [h,k,l] of reciprocal space crosses the Ewald sphere. During the full 
+     * rotation each point crosses the sphere twice (or never if it is too far from 
+     * the origin).
+     * Point is rotated into the lab system q = sMu*sOmega*uAngle*b*[h,k,l] and the
+     * diffraction condition |q + k0| = |k0| gives q_y = -|q|^2/(2|k0|), which 
+     * defines omega. The pixel is then found where the direction of q + k0 crosses
+     * the detector plane.
+     * @return array of solutions {omega (in degrees 0-360), x, z} with non-rounded
+     *         pixel coordinates from top left corner; pixels can be outside of detector
+     */
+    public double[][] hklToLab(double h, double k, double l){
+        double waveVector = 2*Math.PI/this.getWaveLength();
+        // Vector in sample coordinates system: uAngle*b*[h,k,l]
+        Vec3 g = Mat3.rotationZ(omegaShift).transform(new Vec3(2*Math.PI*h/latticeParameters[0],
+                                                               2*Math.PI*k/latticeParameters[1],
+                                                               2*Math.PI*l/latticeParameters[2]));
+        double gx = g.x, gy = g.y, gz = g.z;
+        double cosMu = Math.cos(incidentAngle*Math.PI/180), sinMu = Math.sin(incidentAngle*Math.PI/180);
+        
+        double qy = -1*(gx*gx + gy*gy + gz*gz)/(2*waveVector);
+        // y-component of rotated vector sOmega*g, which gives required qy after sMu rotation
+        double rotatedY = (qy + sinMu*gz)/cosMu;
+        double radius = Math.sqrt(gx*gx + gy*gy);
+        // Points on the vertical plane of the beam touch the sphere only once, so rounding
+        // errors are allowed
+        if((radius == 0) || (Math.abs(rotatedY) > radius*(1 + 1e-9)))
+            return new double[0][];
+        // rotatedY = sin(omega)*gx + cos(omega)*gy = radius*sin(omega + phi)
+        double phi = Math.atan2(gy, gx);
+        double asin = Math.asin(Math.max(-1, Math.min(1, rotatedY/radius)));
+        double[] omegas = {asin - phi, Math.PI - asin - phi};
+        
+        List<double[]> solutions = new ArrayList<double[]>();
+        for(double omega : omegas){
+            double rotatedX = Math.cos(omega)*gx - Math.sin(omega)*gy;
+            double qz = sinMu*rotatedY + cosMu*gz;
+            // Direction of scattered beam q + k0
+            double dirY = qy + waveVector;
+            if(dirY <= 0)
+                continue; // Scattered beam doesn't reach the detector
+            double deltaX = detectorDistance*rotatedX/dirY;
+            double deltaZ = detectorDistance*qz/dirY;
+            double degrees = omega*180/Math.PI;
+            degrees = degrees - 360*Math.floor(degrees/360);
+            solutions.add(new double[] {degrees, deltaX/xPixelSize + xCenter, zCenter - deltaZ/zPixelSize});
         }
-        catch(Exception e){
-            throw new Exception(e);
+        return solutions.toArray(new double[solutions.size()][]);
+    }
+    
+    /**
+     * Transforms the part of detector row to reciprocal space. Results are written
+     * to separate arrays for h-, k- and l-coordinates starting from index 0
+     * @param z vertical pixel position from top left corner
+     * @param x0 horizontal position of the first pixel
+     * @param width number of pixels to transform
+     * @param omega current azimuthal angle of sample rotation with respect to 0 starting angle
+     * @param h array for h-coordinates
+     * @param k array for k-coordinates
+     * @param l array for l-coordinates (can be null if l-coordinates are not needed)
+     */
+    public void rowToHKL(int z, int x0, int width, double omega, double[] h, double[] k, double[] l){
+        this.transformRow(z, x0, width, this.getInverseTransform(omega), h, k, l, 0);
+    }
+    
+    /**
+     * Transforms the rectangular region of detector to reciprocal space. Pixel (x;z)
+     * is written to index (z - z0)*width + (x - x0) of h-, k- and l-arrays
+     * @param x0 horizontal position of top left pixel of the region
+     * @param z0 vertical position of top left pixel of the region
+     * @param width width of the region in pixels
+     * @param height height of the region in pixels
+     * @param omega current azimuthal angle of sample rotation with respect to 0 starting angle
+     * @param h array of length width*height for h-coordinates
+     * @param k array of length width*height for k-coordinates
+     * @param l array of length width*height for l-coordinates (can be null if l-coordinates are not needed)
+     */
+    public void regionToHKL(int x0, int z0, int width, int height, double omega, double[] h, double[] k, double[] l){
+        InverseTransform t = this.getInverseTransform(omega);
+        for(int z = z0; z < z0 + height; z++){
+            this.transformRow(z, x0, width, t, h, k, l, (z - z0)*width);
         }
-        return hkl;         
+    }
+    
+    /**
+     * The same as labToHKL(x, z, omega, hkl) for the row of pixels. Vertical
+     * position is the same for the whole row, so it is calculated only once.
+     */
+    private void transformRow(int z, int x0, int width, InverseTransform t, double[] h, double[] k, double[] l, int offset){
+        double deltaZ = this.zPixTOmm(z);
+        double yz2 = detectorDistance*detectorDistance + deltaZ*deltaZ;
+        double distance = detectorDistance, waveVector = t.waveVector;
+        double pixelSize = xPixelSize, center = xCenter;
+        for(int i = 0; i < width; i++){
+            double deltaX = (x0 + i - center)*pixelSize;
+            double norm = waveVector/Math.sqrt(deltaX*deltaX + yz2);
+            // Momentum transfer vector
+            double qx = deltaX*norm;
+            double qy = distance*norm - waveVector;
+            double qz = deltaZ*norm;
+            h[offset + i] = t.m00*qx + t.m01*qy + t.m02*qz;
+            k[offset + i] = t.m10*qx + t.m11*qy + t.m12*qz;
+            if(l != null)
+                l[offset + i] = t.m20*qx + t.m21*qy + t.m22*qz;
+        }
+    }
+    
+    private InverseTransform getInverseTransform(double omega){
+        InverseTransform t = inverseTransform;
+        if((t == null) || (t.omega != omega)){
+            t = new InverseTransform(omega);
+            inverseTransform = t;
+        }
+        return t;
+    }
+    
+    /**
+     * Inverted transformation matrix (sMu*sOmega*uAngle*b)^-1 for one azimuthal angle.
+     * All rotations are orthogonal, so the inverse is b^-1*(sMu*sOmega*uAngle)^T.
+     */
+    private class InverseTransform {
+        private final double omega;
+        private final double waveVector; // 2*pi/lambda
+        private final double m00, m01, m02, m10, m11, m12, m20, m21, m22;
+        
+        private InverseTransform(double omega){
+            this.omega = omega;
+            waveVector = 2*Math.PI/getWaveLength();
+            Mat3 m = Mat3.diagonal(latticeParameters[0]/(2*Math.PI), latticeParameters[1]/(2*Math.PI), latticeParameters[2]/(2*Math.PI))
+                         .multiply(getRotationMatrix(omega).transpose());
+            m00 = m.m00;  m01 = m.m01;  m02 = m.m02;
+            m10 = m.m10;  m11 = m.m11;  m12 = m.m12;
+            m20 = m.m20;  m21 = m.m21;  m22 = m.m22;
+        }
+    }
+    
+    /**
+     * Composes the matrix that transforms [h,k,l] coordinates to the momentum
+     * transfer vector in lab coordinates system: sMu*sOmega*uAngle*b
+     * @param omega current azimuthal angle of sample rotation with respect to 0 starting angle
+     * @return transformation matrix 3x3
+     */
+    private Mat3 getTransformationMatrix(double omega){
+        // Reciprocal lattice matrix b
+        Mat3 b = Mat3.diagonal(2*Math.PI/latticeParameters[0], 2*Math.PI/latticeParameters[1], 2*Math.PI/latticeParameters[2]);
+        return this.getRotationMatrix(omega).multiply(b);
+    }
+    
+    /**
+     * Rotational part of transformation matrix: sMu*sOmega*uAngle, where sMu
+     * accounts incident angle, sOmega - azimuthal angle of rotation and uAngle - 
+     * the initial azimuthal shift
+     */
+    private Mat3 getRotationMatrix(double omega){
+        return Mat3.rotationX(incidentAngle).multiply(Mat3.rotationZ(omega)).multiply(Mat3.rotationZ(omegaShift));
     }
 }
@@ -0,0 +1,126 @@
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ *
+ * @author Mikhail Shipilin
+ * Orientation of detector images: clockwise rotation followed by horizontal and
+ * vertical flips, the same as ImageProcessor.rotate(), flipHorizontal() and
+ * flipVertical(). For rotations by multiples of 90 degrees (of square images,
+ * or by 0 and 180 degrees of any images) ImageJ doesn't interpolate, so the
+ * orientation is just a mapping of pixel indices. Pixels are then taken directly
+ * from the stored image instead of transforming the whole image.
+ */
+public final class FrameOrientation {
+    private final double rotation; // Clockwise rotation angle in degrees
+    private final boolean flipHorizontal, flipVertical;
+    private final boolean rightAngle; // Rotation angle is a multiple of 90 degrees
+    private final int quadrant; // Rotation angle in units of 90 degrees
+
+    public FrameOrientation(double rotation, boolean flipHorizontal, boolean flipVertical){
+        this.rotation = rotation;
+        this.flipHorizontal = flipHorizontal;
+        this.flipVertical = flipVertical;
+        double normalizedRotation = rotation - 360*Math.floor(rotation/360);
+        rightAngle = Math.abs(normalizedRotation - 90*Math.round(normalizedRotation/90)) < 1e-9;
+        quadrant = (int)Math.round(normalizedRotation/90) % 4;
+    }
+
+    /**
+     * @return true if the image of given size can be oriented by mapping of indices
+     */
+    public boolean isIndexMapping(int width, int height){
+        return rightAngle && ((quadrant % 2 == 0) || (width == height));
+    }
+
+    /**
+     * @return true if rows of oriented image are columns of stored image
+     */
+    public boolean isTransposed(){
+        return quadrant % 2 == 1;
+    }
+
+    /**
+     * Returns the row of stored image (or column if isTransposed()) which
+     * contains row z of oriented image. Size of oriented image is the same
+     * as the size of stored image.
+     */
+    public int getSourceLine(int z, int width, int height){
+        int zFlipped = flipVertical ? height - 1 - z : z;
+        switch(quadrant){
+            case 0: return zFlipped;
+            case 1: return zFlipped;
+            case 2: return height - 1 - zFlipped;
+            default: return width - 1 - zFlipped;
+        }
+    }
+
+    /**
+     * Returns the position along the line of stored image (see getSourceLine())
+     * of pixel x of oriented image row
+     */
+    public int getSourcePosition(int x, int width){
+        int xFlipped = flipHorizontal ? width - 1 - x : x;
+        return ((quadrant == 1) || (quadrant == 2)) ? width - 1 - xFlipped : xFlipped;
+    }
+
+    /**
+     * Reads the row of oriented image without transformation of the whole image.
+     * Values are the same as ImageProcessor.getLine() of oriented image returns.
+     * @param source stored image (isIndexMapping() should be true for its size)
+     * @param z vertical position of row from top left corner
+     * @param row array which is filled with pixel values starting from x = 0
+     */
+    public void getRow(ImageProcessor source, int z, double[] row){
+        int width = source.getWidth(), height = source.getHeight();
+        int line = getSourceLine(z, width, height);
+        int n = Math.min(row.length, width);
+        for(int x = 0; x < n; x++){
+            int position = getSourcePosition(x, width);
+            row[x] = isTransposed() ? source.getPixelValue(line, position) : source.getPixelValue(position, line);
+        }
+    }
+
+    /**
+     * Returns oriented image cropped to width x height from top left corner. If
+     * orientation is the mapping of indices, the result is filled in one pass
+     * from the stored image, otherwise the image is transformed by ImageJ.
+     * @param source stored image (it can be changed)
+     * @param width width of resulting image (is limited by image width)
+     * @param height height of resulting image (is limited by image height)
+     */
+    public ImageProcessor apply(ImageProcessor source, int width, int height){
+        int sourceWidth = source.getWidth(), sourceHeight = source.getHeight();
+        if(!isIndexMapping(sourceWidth, sourceHeight)){
+            source.rotate(rotation);
+            if(flipHorizontal)
+                source.flipHorizontal();
+            if(flipVertical)
+                source.flipVertical();
+            if((width >= sourceWidth) && (height >= sourceHeight))
+                return source;
+            source.setRoi(0, 0, width, height);
+            return source.crop();
+        }
+        width = Math.min(width, sourceWidth);
+        height = Math.min(height, sourceHeight);
+        ImageProcessor result = source.createProcessor(width, height);
+        boolean floatData = source instanceof FloatProcessor;
+        int[] positions = new int[width];
+        for(int x = 0; x < width; x++){
+            positions[x] = getSourcePosition(x, sourceWidth);
+        }
+        for(int z = 0; z < height; z++){
+            int line = getSourceLine(z, sourceWidth, sourceHeight);
+            for(int x = 0; x < width; x++){
+                int sx = isTransposed() ? line : positions[x];
+                int sy = isTransposed() ? positions[x] : line;
+                if(floatData)
+                    result.setf(x, z, source.getf(sx, sy));
+                else
+                    result.set(x, z, source.get(sx, sy));
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,154 @@
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ *
+ * @author Mikhail Shipilin
+ * Reads images of the scan ahead of their processing. Reader threads open and
+ * decode next images while the current one is being processed, so that waiting
+ * for the disk (especially network storage) doesn't add to the calculation time.
+ * Images are returned by next() in the order of paths. Number of images which are
+ * read but not yet taken is limited by depth, so memory usage is bounded.
+ *
+ * Transformations of images (rotation, flips) can be done in reader threads
+ * as well by overriding decode().
+ *
+ * Several prefetchers processed in parallel can share one pool of reader threads
+ * (see createReaders()), so the number of readers doesn't grow with the number
+ * of processing threads.
+ */
+public class FramePrefetcher {
+    public static final int DEFAULT_DEPTH = 4; // Default number of images read ahead
+
+    private final String[] paths; // Absolute paths of images
+    private final int last; // Index of the image after the last one to be read
+    private final int depth; // Maximum number of images read ahead
+    private final ExecutorService readers;
+    private final boolean ownReaders; // Readers are stopped by close() if they are not shared
+    private final Queue<Future<ImageProcessor>> queue = new ArrayDeque<Future<ImageProcessor>>(); // Images in reading, in order of paths
+    private int nextToRead; // Index of the next image to be submitted for reading
+
+    /**
+     * @param paths absolute paths of images
+     * @param first index of the first image to be read
+     * @param last index of the image after the last one to be read
+     * @param readersNumber number of reader threads
+     * @param depth maximum number of images read ahead
+     */
+    public FramePrefetcher(String[] paths, int first, int last, int readersNumber, int depth){
+        this(paths, first, last, createReaders(readersNumber), true, depth);
+    }
+
+    /**
+     * @param paths absolute paths of images
+     * @param first index of the first image to be read
+     * @param last index of the image after the last one to be read
+     * @param readers shared pool of reader threads, it is not stopped by close()
+     * @param depth maximum number of images read ahead
+     */
+    public FramePrefetcher(String[] paths, int first, int last, ExecutorService readers, int depth){
+        this(paths, first, last, readers, false, depth);
+    }
+
+    private FramePrefetcher(String[] paths, int first, int last, ExecutorService readers, boolean ownReaders, int depth){
+        this.paths = paths;
+        this.last = last;
+        this.depth = Math.max(1, depth);
+        this.nextToRead = first;
+        this.readers = readers;
+        this.ownReaders = ownReaders;
+    }
+
+    public FramePrefetcher(String[] paths, int readersNumber, int depth){
+        this(paths, 0, paths.length, readersNumber, depth);
+    }
+
+    /**
+     * Creates pool of reader threads which can be shared by several prefetchers,
+     * it should be stopped by shutdownNow() after they are closed
+     * @param readersNumber number of reader threads
+     */
+    public static ExecutorService createReaders(int readersNumber){
+        return Executors.newFixedThreadPool(Math.max(1, readersNumber), new ThreadFactory(){
+            @Override
+            public Thread newThread(Runnable r){
+                Thread thread = new Thread(r, "HESXRD image reader");
+                thread.setDaemon(true); // Readers shouldn't prevent ImageJ from closing
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Opens the image. Is called from reader threads, so overriding methods
+     * should not change the state shared with processing threads.
+     * @param path absolute path of image
+     * @return image processor
+     */
+    protected ImageProcessor decode(String path) throws Exception{
+        ImageProcessor ip = (new ImagePlus(path)).getProcessor();
+        if(ip == null)
+            throw new Exception("File can't be open as an image: " + path);
+        return ip;
+    }
+
+    /**
+     * @return true if there are images which are not taken by next()
+     */
+    public boolean hasNext(){
+        return !queue.isEmpty() || (nextToRead < last);
+    }
+
+    /**
+     * Returns the next image, waiting until it is read, and starts reading the
+     * following ones
+     * @return next image in order of paths
+     */
+    public ImageProcessor next() throws Exception{
+        fillQueue();
+        Future<ImageProcessor> future = queue.poll();
+        if(future == null)
+            throw new Exception("There are no more images to read.");
+        ImageProcessor ip;
+        try{
+            ip = future.get();
+        }
+        catch(ExecutionException e){
+            throw new Exception(e.getCause());
+        }
+        fillQueue();
+        return ip;
+    }
+
+    /**
+     * Stops reader threads (if they are not shared). Images which are being read are discarded.
+     */
+    public void close(){
+        for(Future<ImageProcessor> future : queue){
+            future.cancel(true);
+        }
+        queue.clear();
+        if(ownReaders)
+            readers.shutdownNow();
+    }
+
+    private void fillQueue(){
+        while((queue.size() < depth) && (nextToRead < last)){
+            final String path = paths[nextToRead++];
+            queue.add(readers.submit(new Callable<ImageProcessor>(){
+                @Override
+                public ImageProcessor call() throws Exception{
+                    return decode(path);
+                }
+            }));
+        }
+    }
+}
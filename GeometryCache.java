@@ -0,0 +1,252 @@
+import ij.Prefs;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.regex.Pattern;
+
+/**
+ *
+ * @author Mikhail Shipilin
+ * Stores geometry and correction maps in files on disk, so that they don't need
+ * to be recalculated for every session. Files are named by the hash of all parsed
+ * experiment parameters, so the maps are reused only for exactly the same geometry.
+ * Files are read completely into arrays on Java heap (maps take the same memory as
+ * calculated ones), loading saves only the time of calculation.
+ *
+ * Cache is used only if user has chosen its directory. Total size of files in the
+ * directory is limited by MAX_SIZE: the least recently used files are deleted when
+ * a new map is stored.
+ */
+public class GeometryCache {
+    private static final int MAGIC = 0x48455358; // "HESX"
+    private static final int VERSION = 1; // Should be increased when the content of maps is changed
+    private static final int HEADER_SIZE = 16; // magic, version, width, height
+    private static final long MAX_SIZE = 1L << 30; // Maximal total size of cache files in bytes
+    public static final String DIRECTORY_KEY = "hesxrd.cache"; // Name of property (ImageJ preference) with cache directory
+    //Names of files written by cache: maps and temporary files named by the key
+    private static final Pattern FILE_NAME = Pattern.compile("[0-9a-f]{40}(\\.geometry|\\.correction|[0-9]*\\.tmp)");
+
+    private final File directory; // Directory containing cache files
+    private final String key; // Hash of experiment parameters
+    
+    /**
+     * Content of cache file
+     */
+    private static class Maps {
+        final int width, height; // Size of maps
+        final float[][] arrays; // Arrays of size width*height
+        
+        Maps(int width, int height, float[][] arrays){
+            this.width = width;
+            this.height = height;
+            this.arrays = arrays;
+        }
+    }
+
+    /**
+     * @param directory directory for cache files (is created if doesn't exist)
+     * @param parameters all parameters defining the experimental geometry
+     */
+    public GeometryCache(File directory, double[] parameters) throws Exception {
+        this.directory = directory;
+        this.key = calculateKey(parameters);
+    }
+
+    /**
+     * Returns directory for cache files chosen by user: the value of "hesxrd.cache" system
+     * property or ImageJ preference (e.g. set by macro call("ij.Prefs.set", "hesxrd.cache", path))
+     * @return directory or null if maps shouldn't be stored
+     */
+    public static File getDefaultDirectory(){
+        String path = System.getProperty(DIRECTORY_KEY);
+        if(path == null)
+            path = Prefs.get(DIRECTORY_KEY, null);
+        if((path == null) || (path.trim().length() == 0))
+            return null;
+        return new File(path.trim());
+    }
+
+    public String getKey(){
+        return key;
+    }
+
+    /**
+     * Loads geometry map from cache
+     * @return map or null if there is no map for current parameters in cache
+     */
+    public GeometryMap loadGeometryMap(double latticeRatio) throws Exception {
+        Maps maps = read(new File(directory, key + ".geometry"), 3);
+        if(maps == null)
+            return null;
+        return new GeometryMap(maps.width, maps.height, maps.arrays[0], maps.arrays[1], maps.arrays[2], latticeRatio);
+    }
+
+    public void saveGeometryMap(GeometryMap map) throws Exception {
+        write(new File(directory, key + ".geometry"), map.getWidth(), map.getHeight(),
+              new float[][] {map.getHArray(), map.getKArray(), map.getLArray()});
+    }
+
+    /**
+     * Loads correction map from cache
+     * @return map or null if there is no map for current parameters in cache
+     */
+    public CorrectionMap loadCorrectionMap() throws Exception {
+        Maps maps = read(new File(directory, key + ".correction"), 1);
+        if(maps == null)
+            return null;
+        return new CorrectionMap(maps.width, maps.height, maps.arrays[0]);
+    }
+
+    public void saveCorrectionMap(CorrectionMap map) throws Exception {
+        write(new File(directory, key + ".correction"), map.getWidth(), map.getHeight(),
+              new float[][] {map.getInverseFactorsArray()});
+    }
+
+    /**
+     * Reads arrays from the cache file
+     * @param file cache file
+     * @param arraysNumber number of arrays of size width*height in file
+     * @return maps or null if file doesn't exist or has wrong format
+     */
+    private Maps read(File file, int arraysNumber) throws Exception {
+        if(!file.isFile())
+            return null;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        Maps maps;
+        try{
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.nativeOrder());
+            if(!readFully(channel, header) || (header.getInt() != MAGIC) || (header.getInt() != VERSION))
+                return null;
+            int width = header.getInt();
+            int height = header.getInt();
+            if((width <= 0) || (height <= 0) || (channel.size() != HEADER_SIZE + 4L*arraysNumber*width*height))
+                return null;
+            ByteBuffer buffer = ByteBuffer.allocate(4*width*height).order(ByteOrder.nativeOrder());
+            float[][] arrays = new float[arraysNumber][width*height];
+            for(int i = 0; i < arraysNumber; i++){
+                buffer.clear();
+                if(!readFully(channel, buffer))
+                    return null;
+                buffer.asFloatBuffer().get(arrays[i]);
+            }
+            maps = new Maps(width, height, arrays);
+        }
+        finally{
+            raf.close();
+        }
+        file.setLastModified(System.currentTimeMillis()); //The file is recently used
+        return maps;
+    }
+    
+    /**
+     * Fills the buffer from the channel and prepares it for reading
+     * @return false if the end of file is reached before
+     */
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer) throws Exception {
+        while(buffer.hasRemaining()){
+            if(channel.read(buffer) < 0)
+                return false;
+        }
+        buffer.flip();
+        return true;
+    }
+
+    /**
+     * Writes arrays to the cache file. Data is written to temporary file first and
+     * then it is renamed, so that other sessions never see the incomplete file
+     */
+    private void write(File file, int width, int height, float[][] arrays) throws Exception {
+        if(!directory.isDirectory() && !directory.mkdirs())
+            throw new Exception("Can't create cache directory " + directory.getPath());
+        File tempFile = File.createTempFile(key, ".tmp", directory);
+        RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
+        try{
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.nativeOrder());
+            header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height);
+            header.flip();
+            channel.write(header);
+            ByteBuffer buffer = ByteBuffer.allocate(4*width*height).order(ByteOrder.nativeOrder());
+            for(float[] array : arrays){
+                buffer.clear();
+                buffer.asFloatBuffer().put(array);
+                while(buffer.hasRemaining()){
+                    channel.write(buffer);
+                }
+            }
+            channel.force(false);
+        }
+        finally{
+            raf.close();
+        }
+        if(!tempFile.renameTo(file)){
+            file.delete();
+            if(!tempFile.renameTo(file)){
+                tempFile.delete();
+                throw new Exception("Can't write cache file " + file.getPath());
+            }
+        }
+        removeOldFiles();
+    }
+    
+    /**
+     * Deletes the least recently used cache files until total size of them is within MAX_SIZE.
+     * Only the files written by cache (maps and temporary files) are counted and deleted,
+     * other files in the directory are never touched.
+     */
+    private void removeOldFiles(){
+        File[] files = directory.listFiles(new FileFilter(){
+            @Override
+            public boolean accept(File file){
+                return file.isFile() && FILE_NAME.matcher(file.getName()).matches();
+            }
+        });
+        if(files == null)
+            return;
+        long totalSize = 0;
+        for(File cacheFile : files){
+            totalSize += cacheFile.length();
+        }
+        Arrays.sort(files, new Comparator<File>(){
+            @Override
+            public int compare(File a, File b){
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for(int i = 0; (i < files.length) && (totalSize > MAX_SIZE); i++){
+            if(!files[i].getName().startsWith(key)){ //Maps of current parameters are kept
+                long size = files[i].length();
+                if(files[i].delete())
+                    totalSize -= size;
+            }
+        }
+    }
+
+    /**
+     * Calculates SHA-1 hash of parameters values
+     */
+    private static String calculateKey(double[] parameters) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(VERSION);
+        for(double parameter : parameters){
+            out.writeLong(Double.doubleToLongBits(parameter));
+        }
+        out.close();
+        byte[] digest = MessageDigest.getInstance("SHA-1").digest(bytes.toByteArray());
+        StringBuilder key = new StringBuilder();
+        for(byte b : digest){
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+}
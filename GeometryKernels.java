@@ -0,0 +1,68 @@
+/**
+ *
+ * @author Mikhail Shipilin
+ * Data-parallel loops over detector rows used in geometry calculations.
+ * Loops work on primitive arrays, have no branches and no method calls inside,
+ * so JIT compiler can unroll and vectorize them.
+ */
+public final class GeometryKernels {
+    
+    private GeometryKernels(){
+    }
+    
+    /**
+     * Rotates h- and k-coordinates around the surface normal by the azimuthal angle.
+     * Rotation is done in the orthogonal reciprocal basis, so it is valid for a1 != a2
+     * @param h h-coordinates (are replaced by rotated values)
+     * @param k k-coordinates (are replaced by rotated values)
+     * @param length number of pixels
+     * @param omega azimuthal angle in degrees
+     * @param latticeRatio a1/a2 ratio of in-plane lattice parameters
+     */
+    public static void rotateHK(double[] h, double[] k, int length, double omega, double latticeRatio){
+        double cos = Math.cos(omega*Math.PI/180);
+        double sinHK = Math.sin(omega*Math.PI/180)*latticeRatio;
+        double sinKH = -1*Math.sin(omega*Math.PI/180)/latticeRatio;
+        for(int i = 0; i < length; i++){
+            double hTemp = h[i];
+            double kTemp = k[i];
+            h[i] = cos*hTemp + sinHK*kTemp;
+            k[i] = sinKH*hTemp + cos*kTemp;
+        }
+    }
+    
+    /**
+     * The same as rotateHK(h, k, length, omega, latticeRatio) for the source coordinates
+     * stored in float arrays (e.g. in geometry map)
+     * @param h0 source h-coordinates
+     * @param k0 source k-coordinates
+     * @param offset index of the first pixel in source arrays
+     * @param h array for rotated h-coordinates
+     * @param k array for rotated k-coordinates
+     * @param length number of pixels
+     * @param omega azimuthal angle in degrees
+     * @param latticeRatio a1/a2 ratio of in-plane lattice parameters
+     */
+    public static void rotateHK(float[] h0, float[] k0, int offset, double[] h, double[] k, int length, double omega, double latticeRatio){
+        double cos = Math.cos(omega*Math.PI/180);
+        double sinHK = Math.sin(omega*Math.PI/180)*latticeRatio;
+        double sinKH = -1*Math.sin(omega*Math.PI/180)/latticeRatio;
+        for(int i = 0; i < length; i++){
+            h[i] = cos*h0[offset + i] + sinHK*k0[offset + i];
+            k[i] = sinKH*h0[offset + i] + cos*k0[offset + i];
+        }
+    }
+    
+    /**
+     * Multiplies intensities by inverted correction factors
+     * @param pixels intensities (are replaced by corrected values)
+     * @param inverseFactors inverted correction factors
+     * @param offset index of the first pixel in inverseFactors array
+     * @param length number of pixels
+     */
+    public static void correct(double[] pixels, float[] inverseFactors, int offset, int length){
+        for(int i = 0; i < length; i++){
+            pixels[i] = pixels[i]*inverseFactors[offset + i];
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ *
+ * @author Mikhail Shipilin
+ * Contains reciprocal space coordinates [h,k,l] of every detector pixel at
+ * zero azimuthal angle. Coordinates at any other azimuthal angle are obtained
+ * by rotation of h- and k-coordinates around the surface normal, l-coordinate
+ * doesn't depend on azimuthal angle.
+ */
+public class GeometryMap {
+    private final int width, height; // Detector size in pixels
+    private final float[] h, k, l; // Coordinates of pixel (x;z) are stored at index z*width + x
+    private final double latticeRatio; // a1/a2 ratio of in-plane lattice parameters
+    private LIndex lIndex; // Pixels sorted by l-coordinate, is created at the first request
+
+    protected GeometryMap(int width, int height, float[] h, float[] k, float[] l, double latticeRatio){
+        this.width = width;
+        this.height = height;
+        this.h = h;
+        this.k = k;
+        this.l = l;
+        this.latticeRatio = latticeRatio;
+    }
+
+    public int getWidth(){
+        return width;
+    }
+
+    public int getHeight(){
+        return height;
+    }
+
+    public double getLatticeRatio(){
+        return latticeRatio;
+    }
+
+    /**
+     * @return true if pixel (x;z) is covered by the map
+     */
+    public boolean contains(int x, int z){
+        return (x >= 0) && (x < width) && (z >= 0) && (z < height);
+    }
+
+    public double getH(int x, int z){
+        return h[z*width + x];
+    }
+
+    public double getK(int x, int z){
+        return k[z*width + x];
+    }
+
+    public double getL(int x, int z){
+        return l[z*width + x];
+    }
+
+    protected float[] getHArray(){
+        return h;
+    }
+
+    protected float[] getKArray(){
+        return k;
+    }
+
+    protected float[] getLArray(){
+        return l;
+    }
+
+    /**
+     * Returns the index of pixels by l-coordinate. The index is calculated at the
+     * first call with one bin per detector row on average and is reused afterwards.
+     */
+    public synchronized LIndex getLIndex(){
+        if(lIndex == null)
+            lIndex = new LIndex(l, height);
+        return lIndex;
+    }
+
+    /**
+     * Returns the coordinates of pixel at given azimuthal angle
+     * @param x horizontal pixel position from top left corner
+     * @param z vertical pixel position from top left corner
+     * @param omega azimuthal angle of sample rotation with respect to 0 starting angle
+     * @param hkl array of length 3 which is filled with [h,k,l] coordinates
+     */
+    public void getHKL(int x, int z, double omega, double[] hkl){
+        double cos = Math.cos(omega*Math.PI/180);
+        double sin = Math.sin(omega*Math.PI/180);
+        int index = z*width + x;
+        hkl[0] = cos*h[index] + sin*latticeRatio*k[index];
+        hkl[1] = -1*sin*h[index]/latticeRatio + cos*k[index];
+        hkl[2] = l[index];
+    }
+
+    /**
+     * Fills the arrays with h- and k-coordinates of all pixels of detector row
+     * at given azimuthal angle
+     * @param z vertical pixel position from top left corner
+     * @param omega azimuthal angle of sample rotation with respect to 0 starting angle
+     * @param rowH array of length width which is filled with h-coordinates
+     * @param rowK array of length width which is filled with k-coordinates
+     */
+    public void getRowHK(int z, double omega, double[] rowH, double[] rowK){
+        GeometryKernels.rotateHK(h, k, z*width, rowH, rowK, width, omega, latticeRatio);
+    }
+
+    /**
+     * The same as getRowHK(z, omega, rowH, rowK) for the part of row, arrays are
+     * filled starting from index 0
+     * @param x0 horizontal position of the first pixel
+     * @param length number of pixels
+     */
+    public void getRowHK(int z, int x0, int length, double omega, double[] rowH, double[] rowK){
+        GeometryKernels.rotateHK(h, k, z*width + x0, rowH, rowK, length, omega, latticeRatio);
+    }
+    
+    /**
+     * Fills the array with l-coordinates of all pixels of detector row
+     * @param z vertical pixel position from top left corner
+     * @param rowL array of length width which is filled with l-coordinates
+     */
+    public void getRowL(int z, double[] rowL){
+        for(int x = 0; x < width; x++){
+            rowL[x] = l[z*width + x];
+        }
+    }
+}
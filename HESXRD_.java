@@ -74,6 +74,7 @@ public class HESXRD_ extends JFrame implements PlugIn, ActionListener{
     private ExperimentHandler experiment; //Container for experiment details
     private RodExtractor extractor;       //Container for diffraction rod extraction information
     private HKextractor hk;               //Container for in-plane cut extraction information
+    private VolumeExtractor volume;       //Container for 3D data extraction information
     //private ImagePlus hkImp;            //Contains image information from hk projections 
     private JFileChooser fileChooser;     //File manager
     // </editor-fold>
@@ -117,6 +118,7 @@ public class HESXRD_ extends JFrame implements PlugIn, ActionListener{
         this.experiment = null;
         this.extractor = null;
         this.hk = null;
+        this.volume = null;
         this.fileChooser = null;
         try{
             imp.getWindow().dispose();
@@ -138,6 +140,7 @@ public class HESXRD_ extends JFrame implements PlugIn, ActionListener{
     private void resetPlugin(){
         this.extractor = null;
         this.hk = null;
+        this.volume = null;
         File f = this.fileChooser.getCurrentDirectory();
         fileChooser = new JFileChooser(f.getAbsolutePath());
         switch(pluginMode){
@@ -396,6 +399,13 @@ public class HESXRD_ extends JFrame implements PlugIn, ActionListener{
                 EnableButton("Save rod profiles", true);               
                 break;
             case 7 /*Extract 3D*/: 
+                EnableButton("Extract 3D data", false);
+                volume = new VolumeExtractor(experiment);
+                if(volume.extractVolume(fileChooser.getSelectedFiles())){
+                    ImagePlus volumeImp = new ImagePlus(volume.getStackName(), volume.getImageStack());
+                    volumeImp.show();
+                }
+                EnableButton("Extract 3D data", true);
                 break;
             case 8 /*Plot results*/:
                 extractor.plotResults();
@@ -0,0 +1,149 @@
+/**
+ *
+ * @author Mikhail Shipilin
+ * Window of in-plane reciprocal space (box of h and k) with the bounds of detector
+ * pixels, which show what part of every detector row can fall into the window at
+ * given azimuthal angle. Pixels outside of this part are not read and transformed.
+ *
+ * Rotation of sample doesn't change the distance of pixel from the surface normal
+ * in the orthogonal basis (h, a1/a2*k), but only shifts its angle. Rows are divided
+ * into blocks of BLOCK_SIZE pixels, for every block the range of distances and the
+ * range of angles of its bounding box at zero azimuthal angle are calculated once
+ * from the geometry map.
+ * At any angle block can reach the window only if its distances overlap distances of
+ * the window and its shifted angles overlap angles of the window. The bounds are
+ * conservative: pixels of found part still have to be checked (see HKprojection.clip()).
+ */
+public class HKWindow {
+    private static final int BLOCK_SIZE = 32; // Number of pixels in block of row
+
+    private final int width, height; // Size of geometry map in pixels
+    private final int blocksPerRow;
+    private final double minRadius, maxRadius; // Distances of the window from the normal
+    private final double startAngle, angularWidth; // Angles of the window in degrees (angularWidth is 360 if
+                                                   // the window contains the normal)
+    private final float[] blockMinRadius, blockMaxRadius; // Distances of blocks, block b of row z is at z*blocksPerRow + b
+    private final float[] blockStartAngle, blockAngularWidth; // Angles of blocks at zero azimuthal angle in degrees
+
+    /**
+     * @param map geometry map of detector
+     * @param limits minH maxH minK maxK of the window
+     */
+    public HKWindow(GeometryMap map, double[] limits){
+        width = map.getWidth();
+        height = map.getHeight();
+        double ratio = map.getLatticeRatio();
+        double[] bounds = getBoxBounds(limits[0], limits[1], ratio*limits[2], ratio*limits[3]);
+        minRadius = bounds[0];
+        maxRadius = bounds[1];
+        startAngle = bounds[2];
+        angularWidth = bounds[3];
+
+        blocksPerRow = (width + BLOCK_SIZE - 1)/BLOCK_SIZE;
+        blockMinRadius = new float[height*blocksPerRow];
+        blockMaxRadius = new float[height*blocksPerRow];
+        blockStartAngle = new float[height*blocksPerRow];
+        blockAngularWidth = new float[height*blocksPerRow];
+        float[] mapH = map.getHArray(), mapK = map.getKArray();
+        for(int z = 0; z < height; z++){
+            for(int b = 0; b < blocksPerRow; b++){
+                int first = z*width + b*BLOCK_SIZE, last = z*width + Math.min(width, (b + 1)*BLOCK_SIZE);
+                double minX = mapH[first], maxX = minX, minY = mapK[first], maxY = minY;
+                for(int i = first + 1; i < last; i++){
+                    minX = Math.min(minX, mapH[i]);
+                    maxX = Math.max(maxX, mapH[i]);
+                    minY = Math.min(minY, mapK[i]);
+                    maxY = Math.max(maxY, mapK[i]);
+                }
+                bounds = getBoxBounds(minX, maxX, ratio*minY, ratio*maxY);
+                int block = z*blocksPerRow + b;
+                blockMinRadius[block] = (float)bounds[0];
+                blockMaxRadius[block] = (float)bounds[1];
+                blockStartAngle[block] = (float)bounds[2];
+                blockAngularWidth[block] = (float)bounds[3];
+            }
+        }
+    }
+
+    /**
+     * Returns the range of distances from the normal and the range of angles of the box
+     * in the orthogonal basis. Box not containing the normal is seen within less than half
+     * of the circle, so its angles are found with respect to the angle of one corner.
+     * @return the smallest and the largest distances, start angle and width of arc in degrees
+     *         (width is 360 if the box contains the normal)
+     */
+    static double[] getBoxBounds(double minX, double maxX, double minY, double maxY){
+        //The nearest point of the box and the farthest corner
+        double nearX = Math.max(minX, Math.min(0, maxX)), nearY = Math.max(minY, Math.min(0, maxY));
+        double[] bounds = {Math.sqrt(nearX*nearX + nearY*nearY),
+                           Math.sqrt(Math.max(minX*minX, maxX*maxX) + Math.max(minY*minY, maxY*maxY)), 0, 360};
+        if(bounds[0] == 0)
+            return bounds;
+        double[] x = {minX, maxX, maxX, minX}, y = {minY, minY, maxY, maxY};
+        double reference = Math.toDegrees(Math.atan2(y[0], x[0]));
+        double min = 0, max = 0;
+        for(int i = 1; i < 4; i++){
+            double angle = Math.toDegrees(Math.atan2(y[i], x[i])) - reference;
+            angle -= 360*Math.floor((angle + 180)/360); //From -180 to 180
+            min = Math.min(min, angle);
+            max = Math.max(max, angle);
+        }
+        //Margin for rounding errors of float arrays
+        bounds[0] *= 1 - 1e-6;
+        bounds[1] *= 1 + 1e-6;
+        bounds[2] = reference + min - 1e-3;
+        bounds[3] = max - min + 2e-3;
+        return bounds;
+    }
+
+    /**
+     * Finds the part of detector row which can fall into the window
+     * @param z vertical pixel position from top left corner
+     * @param omega azimuthal angle of sample rotation with respect to 0 starting angle
+     * @param span array of length 2 which is filled with the first pixel and the pixel after the last one
+     * @return false if no pixel of the row can fall into the window
+     */
+    public boolean getRowSpan(int z, double omega, int[] span){
+        if((z < 0) || (z >= height)){ //Rows outside of the map are not bounded
+            span[0] = 0;
+            span[1] = width;
+            return true;
+        }
+        int firstBlock = -1, lastBlock = -1;
+        for(int b = 0; b < blocksPerRow; b++){
+            if(canReach(z*blocksPerRow + b, omega)){
+                if(firstBlock < 0)
+                    firstBlock = b;
+                lastBlock = b;
+            }
+        }
+        if(firstBlock < 0)
+            return false;
+        span[0] = firstBlock*BLOCK_SIZE;
+        span[1] = Math.min(width, (lastBlock + 1)*BLOCK_SIZE);
+        return true;
+    }
+
+    /**
+     * @return true if any pixel of the rows can fall into the window at given azimuthal angle
+     */
+    public boolean isVisible(int[] rows, double omega){
+        int[] span = new int[2];
+        for(int z : rows){
+            if(getRowSpan(z, omega, span))
+                return true;
+        }
+        return false;
+    }
+
+    private boolean canReach(int block, double omega){
+        if((blockMaxRadius[block] < minRadius) || (blockMinRadius[block] > maxRadius))
+            return false;
+        if((angularWidth >= 360) || (blockAngularWidth[block] >= 360))
+            return true;
+        //Rotation by omega decreases angles of pixels (see GeometryKernels.rotateHK())
+        double distance = blockStartAngle[block] - omega - startAngle;
+        distance -= 360*Math.floor(distance/360); //From 0 to 360
+        return (distance <= angularWidth) || (distance + blockAngularWidth[block] >= 360);
+    }
+}
@@ -5,11 +5,29 @@
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.Prefs;
 import ij.gui.GenericDialog;
+import ij.io.SaveDialog;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import java.awt.Dimension;
 import java.io.File;
+import java.io.IOException;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.swing.JFrame;
 import javax.swing.JProgressBar;
 import javax.swing.UIManager;
@@ -25,8 +43,31 @@ public class HKextractor {
                     imageFlipVert = false; //In case we need to flip image for further processing
     private double azimuthalStep = 0; //Angular step between images 
     private int firstImage = 1; //The number of first image in treated sequence. We need it because we want to apply corresponding angular shift.
+    private int threads = Prefs.getThreads(); //Number of worker threads processing images in parallel
+    private int prefetchDepth = FramePrefetcher.DEFAULT_DEPTH; //Number of reader threads and images read ahead
+    private ExecutorService readers; //Reader threads shared by workers during binning, null if every reader has its own threads
+    private int workerDepth; //Number of images read ahead for each worker sharing the readers
     private boolean singleProjection = true; // Tick in the dialog showing the choice of user
                                              // to calculate only one single in-plane projection
+    private boolean applyCorrections = false; // Shows that user wants to divide pixels intensities
+                                              // by total correction factors before binning
+    private HKprojection.Aggregation aggregation = HKprojection.Aggregation.MAX; // Way of combining intensities
+                                                                               // of pixels in one point of projection
+    private boolean polarBinning = false; // Shows that user wants to bin images into polar grids, where rotation
+                                          // of sample is a shift of angle (see PolarHKGrid)
+    private boolean splitPixels = false; // Shows that user wants to split pixels over all bins of polar grid
+                                         // covered by them instead of rounding to one bin
+    private boolean exactCuts = false; // Shows that user wants to bin pixels with l-coordinates in the slice interval
+                                       // (see LCut) instead of detector rows
+    private boolean restrictHK = false; // Shows that user wants projections only in the window of h and k
+    private double[] hkWindow; // minH maxH minK maxK of the window, null if projections cover the whole detector
+    private HKWindow windowBounds; // Parts of rows which can fall into the window, is created at the first binning
+    private boolean savePartial = false; // Shows that user wants to save partial result (part of the scan)
+                                         // to be merged with other parts by Merge_Partial_Projections
+    private boolean singleReflection = false; // Shows that user wants to look only at one reflection
+    private double[] reflectionHKL = {1, 0, 1}; // [h,k,l] coordinates of the reflection
+    private int reflectionBoxSize = 20; // Size of detector region around the reflection (in pixels)
+    private int reflectionFrames = 5; // Number of images before and after the reflection position to be read
     private boolean integrateSlices = true; // Shows that user wants to get projection(s) that is/are the  
                                             // result of integration of neibouring slices
     private double verticalStep = 0.2; //The vertical step between nearest in-plane projection (in reciprocal units)
@@ -34,11 +75,16 @@ public class HKextractor {
                                               //at '0' position to get higher resolution of the features
                                               //Will be used in case integrateSlices == true and the default value
                                               //can be changed by user
+    private boolean lowMemory = false; // Shows that user wants to integrate slices of multiple projections
+                                       // as soon as they are calculated, in batches limited by memory
     
     private String[] imageAbsolutePaths;
     //private int imgWidth, imgHeight; //Width and Height of images that are currently being processed
     private double[] boundaryHKLValues = new double[6]; //Boundary values minH maxH minK maxK minL maxL
     private int resolution = 300; //Number of steps in one reciprocal unit
+    private static final double BUCKETED_BINNING_STEP = 12; //Rows are bucketed by tiles of projection when 
+                                                            //neighbouring pixels are at least this number of 
+                                                            //steps apart (see "HK binning" benchmark)
     
     private double minL, maxL, L; // (minL,maxL) - range for in-plane projections
                                   // L - the L-value for single projection
@@ -48,6 +94,8 @@ public class HKextractor {
     
     private HKprojection[] projections; //Array of in-plane projections for multiple case
     private HKprojection projection; //in-plane projection for singular case
+    private List<Double> partialLValues; //L-values of integrated projections, if partial result is saved
+    private List<HKprojection[]> partialSlices; //Slices of integrated projections, if partial result is saved
     private ExperimentHandler experiment;
     private ImageStack stack;
     private String stackName; // String with the name of projection(s)
@@ -109,10 +157,34 @@ public class HKextractor {
         if(!showImageProcessingDialog())
             return false;
         
+        if(singleReflection){
+            if(!askReflectionCoordinates())
+                return false;
+            CreateAndShowGUI();
+            try{
+                if(!extractReflection()){
+                    DisposeGUI();
+                    return false;
+                }
+            }
+            catch(Exception e){
+                IJ.error("The error occured while extracting reflection." + e.getMessage());
+                return false;
+            }
+            DisposeGUI();
+            return true;
+        }
+        
         //Ask boundary coordinates and L-value range
         if(!askBoundaryCoordinates())
             return false;
 
+        if(!checkMemory())
+            return false;
+        if(savePartial){
+            partialLValues = new ArrayList<Double>();
+            partialSlices = new ArrayList<HKprojection[]>();
+        }
         CreateAndShowGUI();
         
         if(singleProjection){
@@ -145,9 +217,57 @@ public class HKextractor {
             }
         }
         DisposeGUI();
+        if(savePartial){
+            try{
+                savePartialResult(singleProjection ? new HKprojection[] {projection} : projections);
+            }
+            catch(IOException e){
+                IJ.error("Partial result can't be saved. " + e.getMessage());
+            }
+            partialLValues = null;
+            partialSlices = null;
+        }
         return true;
     }
     
+    /**
+     * Saves resulting projections with their slices to the file chosen by user,
+     * so they can be merged with partial results of other parts of the scan
+     * @param results resulting projections
+     */
+    private void savePartialResult(HKprojection[] results) throws IOException{
+        SaveDialog sd = new SaveDialog("Save partial result", stackName, PartialProjectionFile.EXTENSION);
+        if(sd.getFileName() == null)
+            return;
+        double[] lValues = new double[results.length];
+        HKprojection[][] slices = new HKprojection[results.length][];
+        for(int i = 0; i < results.length; i++){
+            if(partialSlices.isEmpty()){ //Projections are not integrated
+                lValues[i] = results[i].getLValue();
+                slices[i] = new HKprojection[] {results[i]};
+            }
+            else{
+                lValues[i] = partialLValues.get(i);
+                slices[i] = partialSlices.get(i);
+            }
+        }
+        File file = new File(sd.getDirectory(), sd.getFileName());
+        (new PartialProjectionFile(lValues, slices)).write(file);
+        IJ.log("Partial result is saved to " + file.getAbsolutePath());
+    }
+    
+    /**
+     * Integrates adjacent slices into one projection. If partial result is saved,
+     * the slices are kept, because partial results are merged before integration.
+     */
+    private HKprojection sumUpSlices(HKprojection[] slices, double lValue){
+        if(partialSlices != null){
+            partialLValues.add(lValue);
+            partialSlices.add(slices);
+        }
+        return HKprojection.sumUpProjections(slices, lValue);
+    }
+    
     private boolean showImageProcessingDialog(){
         GenericDialog gd = new GenericDialog("Images processing options");
         gd.addNumericField("Rotate clockwise:", 90, 2);
@@ -155,7 +275,17 @@ public class HKextractor {
         gd.addCheckbox("Flip vertically", false);
         gd.addNumericField("Azimuthal step:", 0.1, 1);
         gd.addNumericField("Number of first loaded image", firstImage, 0);
+        gd.addNumericField("Worker threads", threads, 0);
+        gd.addNumericField("Images read ahead", prefetchDepth, 0);
         gd.addCheckbox("Calculate single in-plane projection", singleProjection);
+        gd.addCheckbox("Apply correction factors", applyCorrections);
+        gd.addChoice("Intensity in projection point:", HKprojection.Aggregation.getLabels(), aggregation.getLabel());
+        gd.addCheckbox("Polar binning (faster for many images)", polarBinning);
+        gd.addCheckbox("Split pixels over polar grid (smooth maps)", splitPixels);
+        gd.addCheckbox("Exact L-cuts (follow Ewald sphere)", exactCuts);
+        gd.addCheckbox("Restrict to H/K window", restrictHK);
+        gd.addCheckbox("Save partial result for merging", savePartial);
+        gd.addCheckbox("Extract single reflection", singleReflection);
 
         gd.showDialog();
         if (gd.wasOKed()){
@@ -164,13 +294,164 @@ public class HKextractor {
             imageFlipVert = gd.getNextBoolean();
             azimuthalStep = gd.getNextNumber();
             firstImage = (int)gd.getNextNumber();
+            threads = Math.max(1, (int)gd.getNextNumber());
+            prefetchDepth = Math.max(1, (int)gd.getNextNumber());
             singleProjection = gd.getNextBoolean();
+            applyCorrections = gd.getNextBoolean();
+            aggregation = HKprojection.Aggregation.values()[gd.getNextChoiceIndex()];
+            polarBinning = gd.getNextBoolean();
+            splitPixels = gd.getNextBoolean();
+            exactCuts = gd.getNextBoolean();
+            restrictHK = gd.getNextBoolean();
+            if(splitPixels && (aggregation == HKprojection.Aggregation.COUNT)){
+                IJ.log("Pixels are not split, because numbers of pixels are integer.");
+                splitPixels = false;
+            }
+            if(splitPixels && exactCuts){
+                IJ.log("Pixels are not split, because pixels of exact L-cuts don't form rows.");
+                splitPixels = false;
+            }
+            polarBinning |= splitPixels; //Weights of split pixels are calculated once only for polar grid
+            savePartial = gd.getNextBoolean();
+            singleReflection = gd.getNextBoolean();
             return true;
         }
         else 
             return false;
     }     
     
+    /**
+     * Asks user for coordinates of reflection and size of region around it
+     */
+    private boolean askReflectionCoordinates(){
+        GenericDialog gd = new GenericDialog("Choose reflection");
+        gd.addNumericField("H:", reflectionHKL[0], 2);
+        gd.addNumericField("K:", reflectionHKL[1], 2);
+        gd.addNumericField("L:", reflectionHKL[2], 2);
+        gd.addNumericField("Region size:", reflectionBoxSize, 0, 5, "pix");
+        gd.addNumericField("Images before and after reflection:", reflectionFrames, 0);
+        gd.showDialog();
+        if (gd.wasOKed()){
+            reflectionHKL[0] = gd.getNextNumber();
+            reflectionHKL[1] = gd.getNextNumber();
+            reflectionHKL[2] = gd.getNextNumber();
+            reflectionBoxSize = (int)gd.getNextNumber();
+            reflectionFrames = (int)gd.getNextNumber();
+            return (reflectionBoxSize > 0) && (reflectionFrames >= 0);
+        }
+        else 
+            return false;
+    }
+    
+    /**
+     * Extracts detector regions around the positions where the chosen reflection 
+     * crosses the Ewald sphere. Positions are found by inverse transformation
+     * (ExperimentHandler.hklToLab()), so only several images close to each position
+     * are read instead of the whole scan. Regions are put to the stack and their
+     * summed intensities are written to the log window.
+     * @return false if the reflection is not visible in loaded images or images are not rotated
+     */
+    private boolean extractReflection() throws Exception{
+        if(azimuthalStep == 0){
+            IJ.error("Azimuthal step between images is zero, so the reflection can't be found in the scan.");
+            return false;
+        }
+        DecimalFormat d2 = new DecimalFormat("#.##");
+        String reflectionName = "(" + d2.format(reflectionHKL[0]) + " " + d2.format(reflectionHKL[1]) + " " + d2.format(reflectionHKL[2]) + ")";
+        int width = experiment.getDetectorSizeInPixelsX();
+        int height = experiment.getDetectorSizeInPixelsZ();
+        int boxSize = Math.min(reflectionBoxSize, Math.min(width, height));
+        double[][] solutions = experiment.hklToLab(reflectionHKL[0], reflectionHKL[1], reflectionHKL[2]);
+        double framesPerTurn = 360/Math.abs(azimuthalStep);
+        stack = new ImageStack(boxSize, boxSize);
+        for(int s = 0; s < solutions.length; s++){
+            //Image number at which the reflection crosses the sphere (rotation can be longer than 360 degrees,
+            //so we take the first crossing)
+            double frame = (solutions[s][0] - (firstImage-1)*azimuthalStep)/azimuthalStep;
+            frame = frame - framesPerTurn*Math.floor(frame/framesPerTurn);
+            int frameIndex = (int)Math.round(frame);
+            int x = (int)Math.round(solutions[s][1]);
+            int z = (int)Math.round(solutions[s][2]);
+            if((frameIndex >= imageAbsolutePaths.length) || (x < 0) || (x >= width) || (z < 0) || (z >= height))
+                continue; //Reflection is outside of loaded images or outside of detector
+            //Region is shifted to be inside of detector
+            int x0 = Math.max(0, Math.min(width - boxSize, x - boxSize/2));
+            int z0 = Math.max(0, Math.min(height - boxSize, z - boxSize/2));
+            int firstFrame = Math.max(0, frameIndex - reflectionFrames);
+            int lastFrame = Math.min(imageAbsolutePaths.length - 1, frameIndex + reflectionFrames);
+            double intensity = 0;
+            FramePrefetcher images = createPrefetcher(firstFrame, lastFrame + 1, null);
+            try{
+                for(int i = firstFrame; i <= lastFrame; i++){
+                    ImageProcessor ip = images.next();
+                    for(int j = 0; j < boxSize; j++){
+                        double[] pixels = getPixelsLine(ip, z0 + j, x0 + boxSize);
+                        for(int q = x0; q < x0 + boxSize; q++){
+                            intensity += pixels[q];
+                        }
+                    }
+                    ip.setRoi(x0, z0, boxSize, boxSize);
+                    stack.addSlice("Reflection " + reflectionName + ", image " + (firstImage + i), ip.crop());
+                    pBar.setValue(Math.round(100f*(i - firstFrame + 1)/(lastFrame - firstFrame + 1)));
+                    pBar.update(pBar.getGraphics());
+                }
+            }
+            finally{
+                images.close();
+            }
+            IJ.log("Reflection " + reflectionName + ": omega = " + d2.format(solutions[s][0]) +
+                   ", image " + (firstImage + frameIndex) + ", pixel (" + x + "; " + z + ")" +
+                   ", summed intensity in images " + (firstImage + firstFrame) + " - " + (firstImage + lastFrame) +
+                   " = " + d2.format(intensity));
+        }
+        if(stack.getSize() == 0){
+            IJ.error("Reflection " + reflectionName + " doesn't cross the Ewald sphere within loaded images.");
+            return false;
+        }
+        stackName = "Reflection " + reflectionName;
+        return true;
+    }
+    
+    /**
+     * Restricts projections to the window of h and k, e.g. around several reflections.
+     * Only the parts of detector rows which can fall into the window are read and
+     * transformed (see HKWindow).
+     */
+    protected void setHKWindow(double minH, double maxH, double minK, double maxK){
+        if((minH >= maxH) || (minK >= maxK))
+            throw new IllegalArgumentException("H/K window is empty");
+        hkWindow = new double[] {minH, maxH, minK, maxK};
+        restrictHK = true;
+        windowBounds = null;
+    }
+    
+    /**
+     * Asks user for the window of h and k, the whole range of detector is proposed
+     * if the window was not chosen before
+     */
+    private boolean askHKWindow(){
+        double[] window = (hkWindow != null) ? hkWindow : Arrays.copyOf(boundaryHKLValues, 4);
+        for(;;){
+            GenericDialog gd = new GenericDialog("Choose H/K window");
+            gd.addMessage("Choose the region of in-plane projections.\nOther pixels are skipped before binning.");
+            gd.addNumericField("Min H:", window[0], 2);
+            gd.addNumericField("Max H:", window[1], 2);
+            gd.addNumericField("Min K:", window[2], 2);
+            gd.addNumericField("Max K:", window[3], 2);
+            gd.showDialog();
+            if(!gd.wasOKed())
+                return false;
+            double minH = gd.getNextNumber(), maxH = gd.getNextNumber();
+            double minK = gd.getNextNumber(), maxK = gd.getNextNumber();
+            if((minH < maxH) && (minK < maxK)){
+                setHKWindow(minH, maxH, minK, maxK);
+                return true;
+            }
+            if(!IJ.showMessageWithCancel("Wrong H/K window", "Minimal values should be less than maximal ones.\nDo you want to try again?"))
+                return false;
+        }
+    }
+    
     /**
      * Returns the l value requested by user and maximum l value
      */ 
@@ -195,6 +476,13 @@ public class HKextractor {
         catch(Exception e){
             IJ.error(e.getMessage());
         }
+        if(restrictHK && !askHKWindow())
+            return false;
+        if(hkWindow != null){
+            for(int i = 0; i < 4; i++){
+                boundaryHKLValues[i] = hkWindow[i];
+            }
+        }
         String lMaxLimit = String.format("%.2f", boundaryHKLValues[5]);
         String lMinLimit = String.format("%.2f", boundaryHKLValues[4]);
         if(singleProjection){
@@ -256,12 +544,19 @@ public class HKextractor {
                 gd.addNumericField("Choose max L-value:", boundaryHKLValues[5], 2);
                 gd.addNumericField("Step between projections (in RLU)", verticalStep, 2);
                 gd.addCheckbox("Integrate adjacent slices", integrateSlices);
+                gd.addCheckbox("Limit memory usage", lowMemory);
                 gd.showDialog();
                 if (gd.wasOKed()){
                     minL = gd.getNextNumber();
                     maxL = gd.getNextNumber();
                     verticalStep = gd.getNextNumber();
                     integrateSlices = gd.getNextBoolean();
+                    lowMemory = gd.getNextBoolean();
+                    if(savePartial && integrateSlices && lowMemory && !isFoldedDirectly()){
+                        IJ.error("Partial result of integrated projections with " + aggregation.getLabel().toLowerCase() + " intensity\n" +
+                                 "contains all slices, so memory usage can't be limited.");
+                        continue;
+                    }
                     if((minL < boundaryHKLValues[4]) || (minL > boundaryHKLValues[5]) ||
                        (maxL < boundaryHKLValues[4]) || (maxL > boundaryHKLValues[5])){
                         if(!IJ.showMessageWithCancel("Wrong interval for L-values.", "Do you want to try again?")){
@@ -312,18 +607,18 @@ public class HKextractor {
             if(((lValue - integrationInterval/2) > boundaryHKLValues[4])&&
                ((lValue + integrationInterval/2) < boundaryHKLValues[5])){
                 projectionsStack = calculateMultiHKProjection(lValue-integrationInterval/2, lValue+integrationInterval/2, experiment.getPixelSizeRLU());
-                return HKprojection.sumUpProjections(projectionsStack, lValue);
+                return sumUpSlices(projectionsStack, lValue);
             }
             else{
                 if(((lValue - integrationInterval/2) <= boundaryHKLValues[4])&&
                    ((lValue + integrationInterval/2) < boundaryHKLValues[5])){
                     projectionsStack = calculateMultiHKProjection(boundaryHKLValues[4], integrationInterval, experiment.getPixelSizeRLU());
-                    return HKprojection.sumUpProjections(projectionsStack, lValue);
+                    return sumUpSlices(projectionsStack, lValue);
                 }
                 if(((lValue - integrationInterval/2) > boundaryHKLValues[4])&&
                    ((lValue + integrationInterval/2) >= boundaryHKLValues[5])){
                     projectionsStack = calculateMultiHKProjection(boundaryHKLValues[5]-integrationInterval, boundaryHKLValues[5], experiment.getPixelSizeRLU());
-                    return HKprojection.sumUpProjections(projectionsStack, lValue);
+                    return sumUpSlices(projectionsStack, lValue);
                 }
             }
         }        
@@ -331,57 +626,8 @@ public class HKextractor {
         //If user wants to get just one slice
         //Convert lValue to pixel coordinates
         int pixLValue = (int)(experiment.getDetectorCenterZ() - lValue*experiment.getDetectorCenterZ()/boundaryHKLValues[5]);
-        int imageWidth = experiment.getDetectorSizeInPixelsX();
-        
-        ImageProcessor ip;
-        HKprojection hk = new HKprojection(boundaryHKLValues, lValue, resolution);
-        double[] hkl; //Arrays that will contain reciprocal coordinates of
-                              //pixel(0;0) and pixel(x;z)
-        double h,k;//Temporary h-,k-coordinates
-        //Array will contain coordinates and intensities for current image (pixels along the chosen l-line)
-        double[][] intensityData = new double[imageWidth][3];
-        double[] pixels = new double[imageWidth];
-        int percent = 0;
-        for(int i = 0; i < imageAbsolutePaths.length; i++){
-            if(i == imageAbsolutePaths.length - 1)
-                percent = 100;
-            else
-                percent = Math.round(((float)100/(float)(imageAbsolutePaths.length))*(float)(i+1));
-            ip = getImageProcessor(imageAbsolutePaths[i]);          
-            pixels = ip.getLine(0, pixLValue, imageWidth, pixLValue);
-            int cnt = 0;
-            if(i == 0){//The first image pixels coordinates must be transformed by labToHKL() method
-                for(int j = 0; j < imageWidth; j++){
-                    try{
-                        hkl = experiment.labToHKL(j, pixLValue, (firstImage-1)*azimuthalStep + i*azimuthalStep);
-                    }
-                    catch(Exception e){
-                        IJ.error("Not all pixels are recalculated due to error: ", e.getMessage());
-                        continue;
-                    }
-                    //hkl = experiment.convertPixelCoordinates(j, pixLValue, hkl_00);
-                    intensityData[cnt][0] = hkl[0];
-                    intensityData[cnt][1] = hkl[1];
-                    intensityData[cnt][2] = pixels[j];
-                    cnt++;
-                }
-            }
-            else{ //Each next image pixels coordinates can be transformed based on previous image pixels coordinates
-                for(int j = 0; j < imageWidth; j++){
-                    //Rotation of pixels coordinates by one azimuthalStep
-                    h = intensityData[cnt][0]; 
-                    k = intensityData[cnt][1];
-                    intensityData[cnt][0] = Math.cos(azimuthalStep*Math.PI/180)*h + Math.sin(azimuthalStep*Math.PI/180)*k;
-                    intensityData[cnt][1] = -1*Math.sin(azimuthalStep*Math.PI/180)*h + Math.cos(azimuthalStep*Math.PI/180)*k;
-                    intensityData[cnt][2] = pixels[j];
-                    cnt++;
-                }                
-            }
-            
-            hk.addDataSet(intensityData);
-            pBar.setValue(percent);
-            pBar.update(pBar.getGraphics());
-        }
+        HKprojection hk = new HKprojection(boundaryHKLValues, lValue, resolution, aggregation);
+        binImages(new int[] {pixLValue}, new double[] {lValue}, new HKprojection[] {hk});
         return hk;
     }
     
@@ -394,19 +640,7 @@ public class HKextractor {
      * @throws Exception 
      */
     private HKprojection[] calculateMultiHKProjection(double mnL, double mxL, double step) throws Exception{      
-        int imageWidth = experiment.getDetectorSizeInPixelsX();
-        double[] hkl; //Array containing temporary reciprocal coordinates of
-                      //currently treated pixel for the first loaded image;
-                      //These coordinates are being obtained in LabToHKL() method
-                      //for images other than the first coordinates will be obtained
-                      //by simpler transformation.
-        //Array containing coordinates and intensities for current image (pixels along the chosen l-line)
-        double[][] intensityData = new double[imageWidth][3];
-        double[] pixels = new double[imageWidth];
-        int percent = 0;
-        int pixLValue = 0;
         //pixLValue = (pixLValue >= experiment.getDetectorCenterZ())?pixLValue:experiment.getDetectorCenterZ();
-        int cnt = 0; 
         
         //If we have the case of multui projection with integration enabled
         if((!singleProjection) && (integrateSlices)){
@@ -416,125 +650,199 @@ public class HKextractor {
             maxLValue = (mxL+integrationInterval/2)<boundaryHKLValues[5] ? mxL : boundaryHKLValues[5];
             projectionsHeights = new int[(int)((maxLValue-minLValue)/step + 1)][(int)(integrationInterval/experiment.getPixelSizeRLU() + 1)];
             
-            HKprojection[][] tempProjections = new HKprojection[projectionsHeights.length][projectionsHeights[0].length];
-            double[][][] h = new double[tempProjections.length][tempProjections[0].length][imageWidth]; //Arrays containing h- and k- coordinates of corresponding pixels
-            double[][][] k = new double[tempProjections.length][tempProjections[0].length][imageWidth]; //at the previously treated image for each in-plane projection
-            
             for(int i = 0; i < projectionsHeights.length; i++){
                  for(int j = 0; j < projectionsHeights[0].length; j++){
                      projectionsHeights[i][j] = (int)Math.round(experiment.getDetectorCenterZ() - (minLValue - integrationInterval/2 + step*i)*experiment.getDetectorCenterZ()/boundaryHKLValues[5]) + j;
-                     tempProjections[i][j] = new HKprojection(boundaryHKLValues, minLValue - integrationInterval/2 + step*i + experiment.getPixelSizeRLU()*j, resolution);
                  }
             }
+            if(lowMemory)
+                return calculateFoldedProjections(projectionsHeights, minLValue, step);
             
-            for(int i = 0; i < imageAbsolutePaths.length; i++){
-                if(i == imageAbsolutePaths.length - 1)
-                    percent = 100;
-                else
-                    percent = Math.round(((float)100/(float)(imageAbsolutePaths.length))*(float)(i+1));
-
-                ImageProcessor imgProc = getImageProcessor(imageAbsolutePaths[i]);
-                for(int j = 0; j < tempProjections.length; j++){
-                    for(int p = 0; p < tempProjections[0].length; p++){
-                        pixLValue = projectionsHeights[j][p];
-                        pixels = imgProc.getLine(0, pixLValue, imageWidth, pixLValue);
-                        cnt = 0;
-                        if(i == 0){//The first image pixels coordinates must be transformed by labToHKL() method
-                            for(int q = 0; q < pixels.length; q++){
-                                try{
-                                    hkl = experiment.labToHKL(q, pixLValue, (firstImage-1)*azimuthalStep + i*azimuthalStep);
-                                }
-                                catch(Exception e){
-                                    IJ.error("Not all pixels are recalculated due to error: ", e.getMessage());
-                                    continue;
-                                }
-                                intensityData[cnt][0] = hkl[0];
-                                intensityData[cnt][1] = hkl[1];
-                                intensityData[cnt][2] = pixels[q];
-                                h[j][p][cnt] = hkl[0];
-                                k[j][p][cnt] = hkl[1];
-                                cnt++;
-                            }
-                        }
-                        else{ //Each next image pixels coordinates can be transformed based on previous image pixels coordinates
-                            for(int q = 0; q < imageWidth; q++){
-                                //Rotation of pixels coordinates by one azimuthalStep
-                                intensityData[cnt][0] = Math.cos(azimuthalStep*Math.PI/180)*h[j][p][cnt] + Math.sin(azimuthalStep*Math.PI/180)*k[j][p][cnt];
-                                intensityData[cnt][1] = -1*Math.sin(azimuthalStep*Math.PI/180)*h[j][p][cnt] + Math.cos(azimuthalStep*Math.PI/180)*k[j][p][cnt];
-                                intensityData[cnt][2] = pixels[q];
-                                h[j][p][cnt] = intensityData[cnt][0];
-                                k[j][p][cnt] = intensityData[cnt][1];
-                                cnt++;
-                            }                
-                        }
-                        tempProjections[j][p].addDataSet(intensityData);                        
-                    }
-                }
-                pBar.setValue(percent);
-                pBar.update(pBar.getGraphics());  
+            HKprojection[][] tempProjections = new HKprojection[projectionsHeights.length][projectionsHeights[0].length];
+            //All slices are binned in one pass through images
+            int[] rows = new int[tempProjections.length*tempProjections[0].length];
+            double[] lValues = new double[rows.length];
+            HKprojection[] targets = new HKprojection[rows.length];
+            
+            for(int i = 0; i < projectionsHeights.length; i++){
+                 for(int j = 0; j < projectionsHeights[0].length; j++){
+                     tempProjections[i][j] = new HKprojection(boundaryHKLValues, minLValue - integrationInterval/2 + step*i + experiment.getPixelSizeRLU()*j, resolution, aggregation);
+                     rows[i*projectionsHeights[0].length + j] = projectionsHeights[i][j];
+                     lValues[i*projectionsHeights[0].length + j] = tempProjections[i][j].getLValue();
+                     targets[i*projectionsHeights[0].length + j] = tempProjections[i][j];
+                 }
             }
+            
+            binImages(rows, lValues, targets);
             HKprojection[] finalProjections = new HKprojection[tempProjections.length];
             for(int i = 0; i < finalProjections.length; i++){
-                finalProjections[i] = HKprojection.sumUpProjections(tempProjections[i], minLValue + step*i);;
+                finalProjections[i] = sumUpSlices(tempProjections[i], minLValue + step*i);
             }
             return finalProjections;
         }
         else{
             HKprojection[] finalProjections = new HKprojection[(int)((mxL-mnL)/step + 1)];
-            double[][] h = new double[finalProjections.length][imageWidth]; //Arrays containing h- and k- coordinates of corresponding pixels
-            double[][] k = new double[finalProjections.length][imageWidth]; //at the previously treated image for each in-plane projection
+            int[] rows = new int[finalProjections.length];
+            double[] lValues = new double[finalProjections.length];
 
             for(int j = 0; j < finalProjections.length; j++){
-                finalProjections[j] = new HKprojection(boundaryHKLValues, mnL + step*j, resolution);
+                finalProjections[j] = new HKprojection(boundaryHKLValues, mnL + step*j, resolution, aggregation);
+                //Convert lValue to pixel coordinates
+                rows[j] = (int)(experiment.getDetectorCenterZ() - (mnL + step*j)*experiment.getDetectorCenterZ()/boundaryHKLValues[5]);
+                lValues[j] = finalProjections[j].getLValue();
             }
 
-            for(int i = 0; i < imageAbsolutePaths.length; i++){
-                if(i == imageAbsolutePaths.length - 1)
-                    percent = 100;
-                else
-                    percent = Math.round(((float)100/(float)(imageAbsolutePaths.length))*(float)(i+1));
-
-                ImageProcessor imgProc = getImageProcessor(imageAbsolutePaths[i]);
-                for(int j = 0; j < finalProjections.length; j++){
-                    //Convert lValue to pixel coordinates
-                    pixLValue = (int)(experiment.getDetectorCenterZ() - (mnL + step*j)*experiment.getDetectorCenterZ()/boundaryHKLValues[5]);                
-                    pixels = imgProc.getLine(0, pixLValue, imageWidth, pixLValue);
-                    cnt = 0;
-                    if(i == 0){//The first image pixels coordinates must be transformed by labToHKL() method
-                        for(int q = 0; q < imageWidth; q++){
-                            try{
-                                hkl = experiment.labToHKL(q, pixLValue, (firstImage-1)*azimuthalStep + i*azimuthalStep);
-                            }
-                            catch(Exception e){
-                                IJ.error("Not all pixels are recalculated due to error: ", e.getMessage());
-                                continue;
-                            }
-                            intensityData[cnt][0] = hkl[0];
-                            intensityData[cnt][1] = hkl[1];
-                            intensityData[cnt][2] = pixels[q];
-                            h[j][cnt] = hkl[0];
-                            k[j][cnt] = hkl[1];
-                            cnt++;
-                        }
-                    }
-                    else{ //Each next image pixels coordinates can be transformed based on previous image pixels coordinates
-                        for(int q = 0; q < imageWidth; q++){
-                            //Rotation of pixels coordinates by one azimuthalStep
-                            intensityData[cnt][0] = Math.cos(azimuthalStep*Math.PI/180)*h[j][cnt] + Math.sin(azimuthalStep*Math.PI/180)*k[j][cnt];
-                            intensityData[cnt][1] = -1*Math.sin(azimuthalStep*Math.PI/180)*h[j][cnt] + Math.cos(azimuthalStep*Math.PI/180)*k[j][cnt];
-                            intensityData[cnt][2] = pixels[q];
-                            h[j][cnt] = intensityData[cnt][0];
-                            k[j][cnt] = intensityData[cnt][1];
-                            cnt++;
-                        }                
-                    }
-                    finalProjections[j].addDataSet(intensityData);
+            binImages(rows, lValues, finalProjections);
+            return finalProjections;
+        } 
+    }
+    
+    /**
+     * Calculates integrated projections keeping in memory only the resulting projections
+     * and one batch of slices. In SUM and COUNT modes integration is the same as binning
+     * of all rows of the interval into one projection, so slices are not created at all.
+     * In other modes slices are calculated in batches limited by available memory (images
+     * are read once per batch), each slice is added to its projection and released when
+     * the batch is done.
+     * @param heights detector rows of slices of each projection
+     * @param minLValue L-value of the first projection
+     * @param step step between projections in RLU
+     * @return projections array
+     */
+    private HKprojection[] calculateFoldedProjections(int[][] heights, double minLValue, double step) throws Exception{
+        int slicesNumber = heights[0].length;
+        HKprojection[] finalProjections = new HKprojection[heights.length];
+        int[] rows = new int[heights.length*slicesNumber];
+        double[] lValues = new double[rows.length]; //L-values of slices
+        for(int i = 0; i < heights.length; i++){
+            for(int j = 0; j < slicesNumber; j++){
+                rows[i*slicesNumber + j] = heights[i][j];
+                lValues[i*slicesNumber + j] = minLValue - integrationInterval/2 + step*i + experiment.getPixelSizeRLU()*j;
+            }
+        }
+        
+        if(isFoldedDirectly()){
+            HKprojection[] targets = new HKprojection[rows.length];
+            for(int i = 0; i < finalProjections.length; i++){
+                finalProjections[i] = new HKprojection(boundaryHKLValues, minLValue + step*i, resolution, aggregation);
+                for(int j = 0; j < slicesNumber; j++){
+                    targets[i*slicesNumber + j] = finalProjections[i];
                 }
-                pBar.setValue(percent);
-                pBar.update(pBar.getGraphics());  
             }
+            binImages(rows, lValues, targets);
             return finalProjections;
-        } 
+        }
+        
+        HKprojection template = new HKprojection(boundaryHKLValues, minLValue, resolution, aggregation);
+        for(int i = 0; i < finalProjections.length; i++){
+            finalProjections[i] = HKprojection.createIntegrated(template, minLValue + step*i);
+        }
+        int batchSize = getSlicesPerBatch(template.getDataSize(), finalProjections.length*finalProjections[0].getDataSize(), rows.length);
+        for(int first = 0; first < rows.length; first += batchSize){
+            int last = Math.min(rows.length, first + batchSize);
+            IJ.showStatus("Slices " + (first + 1) + " - " + last + " of " + rows.length);
+            HKprojection[] slices = new HKprojection[last - first];
+            for(int n = first; n < last; n++){
+                slices[n - first] = new HKprojection(boundaryHKLValues, lValues[n], resolution, aggregation);
+            }
+            binImages(Arrays.copyOfRange(rows, first, last), Arrays.copyOfRange(lValues, first, last), slices);
+            for(int n = first; n < last; n++){
+                finalProjections[n/slicesNumber].addIntegrated(slices[n - first]);
+                slices[n - first] = null;
+            }
+        }
+        return finalProjections;
+    }
+    
+    /**
+     * @return true if slices can be integrated by binning their rows directly into
+     *         resulting projection (sum of sums or counts is the sum or count of all pixels,
+     *         integrated mean is the mean of all pixels)
+     */
+    private boolean isFoldedDirectly(){
+        return (aggregation == HKprojection.Aggregation.SUM) || (aggregation == HKprojection.Aggregation.COUNT) ||
+               (aggregation == HKprojection.Aggregation.MEAN);
+    }
+    
+    /**
+     * Returns number of slices which are calculated at once, so that slices and their
+     * copies in worker threads take not more than half of free memory. Memory of
+     * resulting projections is reserved, because they grow while slices are added.
+     * @param sliceSize maximal size of one slice in bytes
+     * @param projectionsSize maximal size of all resulting projections in bytes
+     * @param slicesNumber total number of slices
+     */
+    private int getSlicesPerBatch(long sliceSize, long projectionsSize, int slicesNumber){
+        long freeMemory = IJ.maxMemory() - IJ.currentMemory() - projectionsSize;
+        long batchSize = freeMemory/(2*sliceSize*threads);
+        return (int)Math.max(1, Math.min(slicesNumber, batchSize));
+    }
+    
+    /**
+     * Estimates peak memory needed for calculation of projections: projections and
+     * slices (upper limit, when all points are hit), their copies in worker threads,
+     * coordinates of rows and rows of images read ahead
+     * @return memory in bytes
+     */
+    private long estimatePeakMemory(){
+        long width = experiment.getDetectorSizeInPixelsX();
+        int projectionsNumber = singleProjection ? 1 : (int)((maxL - minL)/verticalStep + 1);
+        int slicesNumber = integrateSlices ? (int)(integrationInterval/experiment.getPixelSizeRLU() + 1) : 1;
+        long rows = (long)projectionsNumber*slicesNumber;
+        HKprojection slice = new HKprojection(boundaryHKLValues, 0, resolution, aggregation);
+        long sliceSize = slice.getDataSize();
+        long projectionSize = integrateSlices ? HKprojection.createIntegrated(slice, 0).getDataSize() : sliceSize;
+        long imagesSize = 4*rows*width*(prefetchDepth + 1)*threads //Rows of images of every worker and images decoded by readers
+                          + 8*width*experiment.getDetectorSizeInPixelsZ()*prefetchDepth;
+        long workSize = polarBinning ? 4*sliceSize : sliceSize; //Polar grid covering the slice takes about pi times its memory
+        long coordinatesSize = 16*width*threads; //Coordinates of one row per worker
+        if(splitPixels){ //Splitting matrices of all rows
+            coordinatesSize += (long)(12*rows*width*getSplitBinsPerPixel()) + 4*rows*(width + 1);
+        }
+        if(!singleProjection && integrateSlices && lowMemory){
+            if(isFoldedDirectly())
+                return projectionsNumber*workSize*threads + coordinatesSize + imagesSize;
+            int batchSize = getSlicesPerBatch(sliceSize, projectionsNumber*projectionSize, (int)rows);
+            return projectionsNumber*projectionSize + batchSize*workSize*threads + coordinatesSize + imagesSize;
+        }
+        long resultsSize = integrateSlices ? projectionsNumber*projectionSize : 0;
+        return rows*workSize*threads + resultsSize + coordinatesSize + imagesSize;
+    }
+    
+    /**
+     * Estimates the average number of polar grid bins covered by split pixel (see
+     * PolarHKGrid.getRowSplitting()). Footprint of pixel covers about pixel size/radial step
+     * bins in radius and its angular width widened by one azimuthal step in angle, pixels
+     * are taken at half of the largest radius.
+     */
+    private double getSplitBinsPerPixel(){
+        double ratio = experiment.getInPlaneLatticeRatio();
+        double radialStep = Math.min(1, ratio)/resolution;
+        double maxH = Math.max(Math.abs(boundaryHKLValues[0]), Math.abs(boundaryHKLValues[1]));
+        double maxK = ratio*Math.max(Math.abs(boundaryHKLValues[2]), Math.abs(boundaryHKLValues[3]));
+        double maxRadius = Math.sqrt(maxH*maxH + maxK*maxK);
+        double pixelSize = experiment.getPixelSizeRLU();
+        int binsPerImage = Math.max(1, PolarHKGrid.getBinsPerImage(azimuthalStep, maxRadius/radialStep));
+        double angularStep = Math.max(Math.abs(azimuthalStep), 1e-6)/binsPerImage;
+        double radialBins = 1 + pixelSize/radialStep;
+        double angularBins = 1 + (Math.toDegrees(2*pixelSize/maxRadius) + Math.abs(azimuthalStep))/angularStep;
+        return Math.min(PolarHKGrid.MAX_SPLIT_BINS, radialBins*angularBins);
+    }
+    
+    /**
+     * Reports estimated peak memory and asks user whether to continue if it is
+     * more than available memory
+     */
+    private boolean checkMemory(){
+        long estimate = estimatePeakMemory() >> 20;
+        long available = (IJ.maxMemory() - IJ.currentMemory()) >> 20;
+        IJ.log("Estimated peak memory for in-plane projections: up to " + estimate + " MB (" + available + " MB available)");
+        if(estimate <= available)
+            return true;
+        String advice = (!singleProjection && integrateSlices && !lowMemory) ? "Option \"Limit memory usage\" reduces it.\n" : "";
+        return IJ.showMessageWithCancel("Memory", "Calculation may need up to " + estimate + " MB of memory,\n" +
+                                                  "but only " + available + " MB are available.\n" + advice +
+                                                  "Do you want to continue?");
     }
     
     /**
@@ -549,19 +857,14 @@ public class HKextractor {
     private HKprojection[] calculateMultiHKProjectionWithIntegration(double mnL, double mxL, double step) throws Exception{
         HKprojection[][] allProjections = new HKprojection[(int)((mxL-mnL)/step + 1)][(int)Math.round(integrationInterval/experiment.getPixelSizeRLU())];
         int imageWidth = experiment.getDetectorSizeInPixelsX();
-        double[] hkl; //Arrays that will contain reciprocal coordinates of
-                      //pixel(0;0) and pixel(x;z)
-        //Array will contain coordinates and intensities for current image (pixels along the chosen l-line)
-        double[][] intensityData = new double[imageWidth][3];
         double[][][] h = new double[allProjections.length][allProjections[0].length][imageWidth]; //Arrays containing h- and k- coordinates of corresponding pixels
         double[][][] k = new double[allProjections.length][allProjections[0].length][imageWidth]; //on the last image for each in-plane projection
         double[] pixels = new double[imageWidth];
         int percent = 0;
         int pixLValue = 0;
-        int cnt = 0;
         for(int i = 0; i < allProjections.length; i++){    
             for(int j = 0; j < allProjections[0].length; j++){
-                allProjections[i][j] = new HKprojection(boundaryHKLValues, mnL-integrationInterval/2 + experiment.getPixelSizeRLU()*j + step*i, resolution);
+                allProjections[i][j] = new HKprojection(boundaryHKLValues, mnL-integrationInterval/2 + experiment.getPixelSizeRLU()*j + step*i, resolution, aggregation);
             }
         }
         for(int i = 0; i < imageAbsolutePaths.length; i++){
@@ -582,37 +885,10 @@ public class HKextractor {
                         pixLValue = (int)Math.round(experiment.getDetectorCenterZ() - (mnL + step*j + y*experiment.getPixelSizeRLU() - integrationInterval)*experiment.getDetectorCenterZ()/boundaryHKLValues[5]);
                     }
                     
-                    pixels = imgProc.getLine(0, pixLValue, imageWidth, pixLValue);
-                    cnt = 0;
-                    if(i == 0){//The first image pixels coordinates must be transformed by labToHKL() method
-                        for(int q = 0; q < imageWidth; q++){
-                            try{
-                                hkl = experiment.labToHKL(q, pixLValue, (firstImage-1)*azimuthalStep + i*azimuthalStep);
-                            }
-                            catch(Exception e){
-                                IJ.error("Not all pixels are recalculated due to error: ", e.getMessage());
-                                continue;
-                            }
-                            intensityData[cnt][0] = hkl[0];
-                            intensityData[cnt][1] = hkl[1];
-                            intensityData[cnt][2] = pixels[q];
-                            h[j][y][cnt] = hkl[0];
-                            k[j][y][cnt] = hkl[1];
-                            cnt++;
-                        }
-                    }
-                    else{ //Each next image pixels coordinates can be transformed based on previous image pixels coordinates
-                        for(int q = 0; q < imageWidth; q++){
-                            //Rotation of pixels coordinates by one azimuthalStep
-                            intensityData[cnt][0] = Math.cos(azimuthalStep*Math.PI/180)*h[j][y][cnt] + Math.sin(azimuthalStep*Math.PI/180)*k[j][y][cnt];
-                            intensityData[cnt][1] = -1*Math.sin(azimuthalStep*Math.PI/180)*h[j][y][cnt] + Math.cos(azimuthalStep*Math.PI/180)*k[j][y][cnt];
-                            intensityData[cnt][2] = pixels[q];
-                            h[j][y][cnt] = intensityData[cnt][0];
-                            k[j][y][cnt] = intensityData[cnt][1];
-                            cnt++;
-                        }                
-                    }
-                    allProjections[j][y].addDataSet(intensityData);
+                    pixels = getPixelsLine(imgProc, pixLValue, imageWidth);
+                    //Pixels coordinates are rotated from the geometry map by the absolute angle of the image
+                    getRowCoordinates(pixLValue, (firstImage-1)*azimuthalStep + i*azimuthalStep, h[j][y], k[j][y]);
+                    allProjections[j][y].addDataSet(h[j][y], k[j][y], pixels);
                 }
             }
         pBar.setValue(percent);
@@ -626,13 +902,680 @@ public class HKextractor {
         return tempProjections;        
     }
       
+    /**
+     * Bins the rows of all images into projections. Images are split into contiguous
+     * chunks which are processed in parallel by worker threads. Each worker fills its
+     * own copies of projections (the first worker uses the projections themselves),
+     * which are merged at the end according to aggregation mode. Images are independent,
+     * so the result is the same as for sequential processing. If private copies for all workers don't fit into
+     * memory, workers add pixels to lock-free grids shared between them (see 
+     * ConcurrentHKGrid). Grids have as many stripes as copies fit into memory, workers
+     * write into different stripes to reduce contention. Otherwise number of
+     * workers is limited by available memory. If user has chosen polar binning,
+     * images are binned by binImagesPolar(). If user has chosen exact L-cuts, pixels
+     * with l-coordinates within one pixel size around lValues[j] (see LCut) are binned
+     * instead of row rows[j], only the rows containing them are read.
+     *
+     * The same row (L-value) can be needed by several projections, e.g. slices of
+     * overlapping integration intervals. Every row is read and transformed once per
+     * image and its pixels are added to all projections which need it (see BinningPlan).
+     * @param rows detector rows (vertical pixel positions) 
+     * @param lValues L-values of rows
+     * @param projections projections, row rows[j] of every image is binned into projections[j]
+     *        (several rows can be binned into the same projection)
+     */
+    private void binImages(int[] rows, double[] lValues, final HKprojection[] projections) throws Exception{
+        final BinningPlan plan = exactCuts ? BinningPlan.byLValues(lValues, 1e-3*experiment.getPixelSizeRLU()) : BinningPlan.byRows(rows);
+        int[] sourceRows = new int[plan.size()];
+        double[] sourceLValues = new double[plan.size()];
+        for(int s = 0; s < plan.size(); s++){
+            sourceRows[s] = rows[plan.getSlice(s)];
+            sourceLValues[s] = lValues[plan.getSlice(s)];
+        }
+        final LCut[] cuts = exactCuts ? createCuts(sourceLValues) : null;
+        final int[] readRows = (cuts == null) ? sourceRows : getReadRows(cuts);
+        if(readRows.length == 0){
+            IJ.log("Detector has no pixels at L-values of projections.");
+            return;
+        }
+        if((hkWindow != null) && (windowBounds == null)) //All projections have the same limits
+            windowBounds = new HKWindow(experiment.getGeometryMap(), projections[0].getCoveredLimits());
+        if(polarBinning && binImagesPolar(readRows, plan, cuts, projections))
+            return;
+        final int imagesNumber = imageAbsolutePaths.length;
+        Map<HKprojection, HKprojection> distinct = new IdentityHashMap<HKprojection, HKprojection>();
+        long copySize = 0; //Memory needed for private projections of one worker
+        for(HKprojection projection : projections){
+            if(distinct.put(projection, projection) == null)
+                copySize += projection.getDataSize();
+        }
+        long memoryWorkers = getMemoryWorkers(copySize, readRows.length); //Number of workers whose private copies fit into memory
+        int workersNumber = Math.max(1, Math.min(threads, imagesNumber));
+        final boolean shared = (workersNumber > memoryWorkers) && (memoryWorkers > 1);
+        if(shared) //Stripes of shared grids are allocated for copies which fit into memory, workers need memory only for images
+            workersNumber = (int)Math.min(workersNumber, getMemoryWorkers(0, readRows.length));
+        else
+            workersNumber = (int)Math.min(workersNumber, memoryWorkers);
+        final ConcurrentHKGrid[] grids = shared ? new ConcurrentHKGrid[projections.length] : null;
+        if(shared){
+            int stripes = (int)Math.min(workersNumber, memoryWorkers - 1); //Stripe takes the memory of one copy
+            Map<HKprojection, ConcurrentHKGrid> projectionGrids = new IdentityHashMap<HKprojection, ConcurrentHKGrid>();
+            for(int j = 0; j < projections.length; j++){
+                grids[j] = projectionGrids.get(projections[j]);
+                if(grids[j] == null){
+                    grids[j] = projections[j].createConcurrentGrid(stripes);
+                    projectionGrids.put(projections[j], grids[j]);
+                }
+            }
+        }
+        
+        final AtomicInteger processedImages = new AtomicInteger(0);
+        final HKprojection[][] workerProjections = new HKprojection[workersNumber][];
+        ExecutorService pool = Executors.newFixedThreadPool(workersNumber);
+        startReaders(workersNumber);
+        try{
+            List<Future<Object>> futures = new ArrayList<Future<Object>>();
+            for(int w = 0; w < workersNumber; w++){
+                final int first = (int)((long)imagesNumber*w/workersNumber);
+                final int last = (int)((long)imagesNumber*(w + 1)/workersNumber);
+                final int worker = w;
+                if((w == 0) || shared){
+                    workerProjections[w] = projections;
+                }
+                else{
+                    workerProjections[w] = new HKprojection[projections.length];
+                    Map<HKprojection, HKprojection> copies = new IdentityHashMap<HKprojection, HKprojection>();
+                    for(int j = 0; j < projections.length; j++){
+                        HKprojection copy = copies.get(projections[j]);
+                        if(copy == null){
+                            copy = projections[j].createEmptyCopy();
+                            copies.put(projections[j], copy);
+                        }
+                        workerProjections[w][j] = copy;
+                    }
+                }
+                final HKprojection[] targets = workerProjections[w];
+                futures.add(pool.submit(new Callable<Object>(){
+                    @Override
+                    public Object call() throws Exception{
+                        binImages(first, last, readRows, plan, cuts, targets, grids, worker, processedImages);
+                        return null;
+                    }
+                }));
+            }
+            waitForWorkers(futures, processedImages, imagesNumber);
+        }
+        finally{
+            pool.shutdownNow();
+            stopReaders();
+        }
+        if(shared){
+            Map<HKprojection, HKprojection> merged = new IdentityHashMap<HKprojection, HKprojection>();
+            for(int j = 0; j < projections.length; j++){
+                if(merged.put(projections[j], projections[j]) == null)
+                    projections[j].mergeGrid(grids[j]);
+                grids[j] = null;
+            }
+        }
+        else{
+            for(int w = 1; w < workersNumber; w++){
+                Map<HKprojection, HKprojection> merged = new IdentityHashMap<HKprojection, HKprojection>();
+                for(int j = 0; j < projections.length; j++){
+                    if(merged.put(projections[j], projections[j]) == null)
+                        projections[j].mergeProjection(workerProjections[w][j]);
+                }
+                workerProjections[w] = null;
+            }
+        }
+        updateProgress(imagesNumber, imagesNumber);
+    }
+    
+    /**
+     * Returns number of workers which fit into free memory. Every worker except the first one
+     * needs private copies of projections, every worker keeps the rows of images read ahead for it
+     * and the one being binned. Images are decoded by shared reader threads, files other than
+     * uncompressed TIFF are decoded completely (see readRows()).
+     * @param copySize memory needed for private copies of one worker in bytes
+     * @param rowsNumber number of rows read from every image
+     */
+    private long getMemoryWorkers(long copySize, int rowsNumber){
+        long width = experiment.getDetectorSizeInPixelsX();
+        long height = experiment.getDetectorSizeInPixelsZ();
+        long decodingSize = 8*width*height*prefetchDepth; //Decoded and transformed images in reader threads
+        long rowsSize = 4*rowsNumber*width*(prefetchDepth + 1); //Rows of images of one worker
+        long freeMemory = IJ.maxMemory() - IJ.currentMemory() - decodingSize - rowsSize;
+        return Math.max(1, 1 + freeMemory/(2*copySize + rowsSize + 1));
+    }
+    
+    /**
+     * Starts reader threads shared by workers, so the number of readers and of images
+     * read ahead doesn't grow with the number of workers. Readers are used by
+     * createPrefetcher() until stopReaders() is called.
+     * @param workersNumber number of workers reading images in parallel
+     */
+    private void startReaders(int workersNumber){
+        readers = FramePrefetcher.createReaders(prefetchDepth);
+        workerDepth = Math.max(1, prefetchDepth/workersNumber);
+    }
+    
+    private void stopReaders(){
+        if(readers != null)
+            readers.shutdownNow();
+        readers = null;
+    }
+    
+    /**
+     * Waits until all workers are finished, progress bar is updated from this thread
+     * while workers are running
+     */
+    private void waitForWorkers(List<Future<Object>> futures, AtomicInteger processedImages, int imagesNumber) throws Exception{
+        for(Future<Object> future : futures){
+            for(;;){
+                try{
+                    future.get(200, TimeUnit.MILLISECONDS);
+                    break;
+                }
+                catch(TimeoutException e){
+                    updateProgress(processedImages.get(), imagesNumber);
+                }
+                catch(ExecutionException e){
+                    throw new Exception(e.getCause());
+                }
+            }
+        }
+    }
+    
+    /**
+     * Creates exact L-cuts of detector, each cut contains pixels within one pixel
+     * size around the L-value, so the cuts of neighbouring values don't overlap
+     */
+    private LCut[] createCuts(double[] lValues) throws Exception{
+        GeometryMap map = experiment.getGeometryMap();
+        double halfSize = experiment.getPixelSizeRLU()/2;
+        LCut[] cuts = new LCut[lValues.length];
+        for(int j = 0; j < lValues.length; j++){
+            cuts[j] = new LCut(map, lValues[j] - halfSize, lValues[j] + halfSize);
+            if(applyCorrections)
+                cuts[j].setCorrections(experiment.getCorrectionMap());
+        }
+        return cuts;
+    }
+    
+    /**
+     * @return length of arrays fitting pixels of any source: detector width for rows
+     *         or size of the largest cut
+     */
+    private int getSourceSize(LCut[] cuts){
+        if(cuts == null)
+            return experiment.getDetectorSizeInPixelsX();
+        int size = 0;
+        for(LCut cut : cuts){
+            size = Math.max(size, cut.size());
+        }
+        return size;
+    }
+    
+    /**
+     * Returns all detector rows containing pixels of the cuts in ascending order,
+     * positions of cut pixels in the image of these rows are set to the cuts
+     */
+    private int[] getReadRows(LCut[] cuts){
+        TreeSet<Integer> rows = new TreeSet<Integer>();
+        for(LCut cut : cuts){
+            for(int row : cut.getRows()){
+                rows.add(row);
+            }
+        }
+        int[] readRows = new int[rows.size()];
+        int j = 0;
+        for(Integer row : rows){
+            readRows[j++] = row;
+        }
+        for(LCut cut : cuts){
+            cut.setReadRows(readRows);
+        }
+        return readRows;
+    }
+    
+    /**
+     * Bins the rows of all images into polar grids of projections (see PolarHKGrid),
+     * which are resampled into projections at the end. Radius and angle bins of row
+     * pixels are calculated once, for every image they are only shifted by its angle.
+     * If user has chosen to split pixels, the sparse matrices splitting row pixels over
+     * bins are calculated once instead (see PolarHKGrid.getRowSplitting()).
+     * Images are split between workers as in binImages(rows, lValues, projections), each worker
+     * fills its own copies of grids. Number of workers is limited by available memory.
+     * @param rows rows which are read from images, row rows[s] is the source s of plan
+     * @param plan projections fed by every source
+     * @param cuts if not null, pixels of cuts[s] are binned instead of row rows[s]
+     * @return false if polar grid can't be used for this azimuthal step
+     */
+    private boolean binImagesPolar(final int[] rows, final BinningPlan plan, final LCut[] cuts, final HKprojection[] projections) throws Exception{
+        final int imagesNumber = imageAbsolutePaths.length;
+        int imageWidth = experiment.getDetectorSizeInPixelsX();
+        Map<HKprojection, PolarHKGrid> distinct = new IdentityHashMap<HKprojection, PolarHKGrid>();
+        PolarHKGrid[] grids = new PolarHKGrid[projections.length];
+        long copySize = 0; //Memory needed for private grids of one worker
+        try{
+            for(int j = 0; j < projections.length; j++){
+                grids[j] = distinct.get(projections[j]);
+                if(grids[j] == null){
+                    grids[j] = projections[j].createPolarGrid(azimuthalStep, experiment.getInPlaneLatticeRatio());
+                    distinct.put(projections[j], grids[j]);
+                    copySize += grids[j].getDataSize();
+                }
+            }
+        }
+        catch(IllegalArgumentException e){
+            IJ.log(e.getMessage() + ", projections are binned without polar grid.");
+            return false;
+        }
+        //Bins of source pixels don't depend on the image, grids of all projections have the same bins
+        final int[][] radialOffsets = splitPixels ? null : new int[plan.size()][];
+        final int[][] angleIndices = splitPixels ? null : new int[plan.size()][];
+        final PolarHKGrid.SplitRow[] splitRows = splitPixels ? new PolarHKGrid.SplitRow[plan.size()] : null;
+        double[][] h = new double[3][imageWidth];
+        double[][] k = new double[3][imageWidth];
+        double[] cutH = (cuts == null) ? null : new double[getSourceSize(cuts)]; //Coordinates of cut pixels, reused for all cuts
+        double[] cutK = (cuts == null) ? null : new double[cutH.length];
+        double binsPerPixel = 0;
+        for(int s = 0; s < plan.size(); s++){
+            PolarHKGrid grid = grids[plan.getSlice(s)];
+            if(cuts != null){
+                cuts[s].getHK(0, cutH, cutK);
+                radialOffsets[s] = new int[cuts[s].size()];
+                angleIndices[s] = new int[cuts[s].size()];
+                grid.getRowBins(cutH, cutK, radialOffsets[s], angleIndices[s]);
+            }
+            else if(splitPixels){ //Coordinates of neighbouring rows are needed for pixel corners
+                for(int z = 0; z < 3; z++){
+                    getRowCoordinates(rows[s] - 1 + z, 0, h[z], k[z]);
+                }
+                splitRows[s] = grid.getRowSplitting(h, k);
+                binsPerPixel += splitRows[s].getBinsPerPixel()/rows.length;
+            }
+            else{
+                radialOffsets[s] = new int[imageWidth];
+                angleIndices[s] = new int[imageWidth];
+                getRowCoordinates(rows[s], 0, h[1], k[1]);
+                grid.getRowBins(h[1], k[1], radialOffsets[s], angleIndices[s]);
+            }
+        }
+        if(splitPixels)
+            IJ.log("Pixels are split over " + String.format("%.1f", binsPerPixel) + " bins of polar grid on average");
+        
+        long memoryWorkers = getMemoryWorkers(copySize, rows.length); //Number of workers whose private grids fit into memory
+        int workersNumber = (int)Math.max(1, Math.min(Math.min(threads, imagesNumber), memoryWorkers));
+        final AtomicInteger processedImages = new AtomicInteger(0);
+        final PolarHKGrid[][] workerGrids = new PolarHKGrid[workersNumber][];
+        ExecutorService pool = Executors.newFixedThreadPool(workersNumber);
+        startReaders(workersNumber);
+        try{
+            List<Future<Object>> futures = new ArrayList<Future<Object>>();
+            for(int w = 0; w < workersNumber; w++){
+                final int first = (int)((long)imagesNumber*w/workersNumber);
+                final int last = (int)((long)imagesNumber*(w + 1)/workersNumber);
+                if(w == 0){
+                    workerGrids[w] = grids;
+                }
+                else{
+                    workerGrids[w] = new PolarHKGrid[grids.length];
+                    Map<PolarHKGrid, PolarHKGrid> copies = new IdentityHashMap<PolarHKGrid, PolarHKGrid>();
+                    for(int j = 0; j < grids.length; j++){
+                        PolarHKGrid copy = copies.get(grids[j]);
+                        if(copy == null){
+                            copy = grids[j].createEmptyCopy();
+                            copies.put(grids[j], copy);
+                        }
+                        workerGrids[w][j] = copy;
+                    }
+                }
+                final PolarHKGrid[] targets = workerGrids[w];
+                futures.add(pool.submit(new Callable<Object>(){
+                    @Override
+                    public Object call() throws Exception{
+                        binImagesPolar(first, last, rows, plan, cuts, radialOffsets, angleIndices, splitRows, targets, processedImages);
+                        return null;
+                    }
+                }));
+            }
+            waitForWorkers(futures, processedImages, imagesNumber);
+        }
+        finally{
+            pool.shutdownNow();
+            stopReaders();
+        }
+        for(int w = 1; w < workersNumber; w++){
+            Map<PolarHKGrid, PolarHKGrid> merged = new IdentityHashMap<PolarHKGrid, PolarHKGrid>();
+            for(int j = 0; j < grids.length; j++){
+                if(merged.put(grids[j], grids[j]) == null)
+                    grids[j].merge(workerGrids[w][j]);
+            }
+            workerGrids[w] = null;
+        }
+        for(Map.Entry<HKprojection, PolarHKGrid> entry : distinct.entrySet()){
+            entry.getKey().mergePolarGrid(entry.getValue(), splitPixels);
+        }
+        updateProgress(imagesNumber, imagesNumber);
+        return true;
+    }
+    
+    /**
+     * Bins the rows of images from first (inclusive) to last (exclusive) into polar grids
+     * @param cuts if not null, pixels of cuts[s] are binned instead of row rows[s]
+     * @param radialOffsets radial offsets of source pixels (see PolarHKGrid.getRowBins())
+     * @param angleIndices angular bins of source pixels at zero azimuthal angle
+     * @param splitRows if not null, row pixels are split over bins by these matrices instead
+     */
+    private void binImagesPolar(int first, int last, int[] rows, BinningPlan plan, LCut[] cuts, int[][] radialOffsets, int[][] angleIndices, 
+                                PolarHKGrid.SplitRow[] splitRows, PolarHKGrid[] grids, AtomicInteger processedImages) throws Exception{
+        double[] pixels = new double[getSourceSize(cuts)]; //Intensities of the current row (cut), the array is reused
+        boolean[] visible = getVisibleImages(first, last, rows);
+        FramePrefetcher images = createPrefetcher(first, last, rows, visible);
+        try{
+            for(int i = first; i < last; i++){
+                if(!visible[i - first]){ //Images which can't reach the H/K window are not read
+                    processedImages.incrementAndGet();
+                    continue;
+                }
+                ImageProcessor imgProc = images.next(); //Contains only required rows: line s is rows[s] of image
+                for(int s = 0; s < plan.size(); s++){
+                    if(cuts != null)
+                        cuts[s].getIntensities((float[])imgProc.getPixels(), pixels);
+                    else
+                        getPixelsLine(imgProc, s, rows[s], pixels);
+                    for(int j : plan.getSlices(s)){
+                        if(splitRows != null)
+                            grids[j].addRow(splitRows[s], pixels, firstImage - 1 + i);
+                        else
+                            grids[j].addRow(radialOffsets[s], angleIndices[s], pixels, firstImage - 1 + i);
+                    }
+                }
+                processedImages.incrementAndGet();
+            }
+        }
+        finally{
+            images.close();
+        }
+    }
+    
+    /**
+     * Bins the rows of images from first (inclusive) to last (exclusive). Coordinates
+     * of every image are obtained from the geometry map by rotation to the absolute
+     * angle of the image, so images don't depend on each other and rounding errors
+     * don't accumulate. Next images are read in background while the current one is
+     * being binned. Only the required rows are read from images (see readRows())
+     * @param rows rows which are read from images, row rows[s] is the source s of plan
+     * @param plan projections fed by every source, source is transformed once and added to all of them
+     * @param cuts if not null, pixels of cuts[s] are binned instead of row rows[s]
+     * @param grids if not null, pixels are added to shared grids[j] instead of projections[j]
+     * @param worker number of worker thread
+     */
+    private void binImages(int first, int last, int[] rows, BinningPlan plan, LCut[] cuts, HKprojection[] projections, ConcurrentHKGrid[] grids, 
+                           int worker, AtomicInteger processedImages) throws Exception{
+        int imageWidth = experiment.getDetectorSizeInPixelsX();
+        int size = getSourceSize(cuts);
+        double[] h = new double[size]; //Arrays containing h- and k- coordinates of pixels of the current row (cut),
+        double[] k = new double[size]; //they are allocated once and reused for all rows (cuts) of all images
+        double[] pixels = new double[size]; //Intensities of the current row (cut)
+        int[] span = {0, imageWidth}; //Part of the row which can fall into the H/K window
+        boolean bucketed = resolution*experiment.getPixelSizeRLU() >= BUCKETED_BINNING_STEP;
+        boolean[] visible = getVisibleImages(first, last, rows);
+        FramePrefetcher images = createPrefetcher(first, last, rows, visible);
+        try{
+            for(int i = first; i < last; i++){
+                if(!visible[i - first]){ //Images which can't reach the H/K window are not read
+                    processedImages.incrementAndGet();
+                    continue;
+                }
+                ImageProcessor imgProc = images.next(); //Contains only required rows: line s is rows[s] of image
+                double omega = getImageAngle(i);
+                for(int s = 0; s < plan.size(); s++){
+                    int length;
+                    if(cuts != null){
+                        length = cuts[s].size();
+                        cuts[s].getIntensities((float[])imgProc.getPixels(), pixels);
+                        cuts[s].getHK(omega, h, k);
+                    }
+                    else{
+                        if((windowBounds != null) && !windowBounds.getRowSpan(rows[s], omega, span))
+                            continue;
+                        length = span[1] - span[0];
+                        getPixelsLine(imgProc, s, rows[s], pixels);
+                        if(span[0] > 0)
+                            System.arraycopy(pixels, span[0], pixels, 0, length);
+                        //Coordinates are rotated from the geometry map by the absolute angle of the image
+                        getRowCoordinates(rows[s], span[0], length, omega, h, k);
+                    }
+                    int[] slices = plan.getSlices(s);
+                    if(windowBounds != null) //All projections have the same limits
+                        length = projections[slices[0]].clip(h, k, pixels, length);
+                    for(int j : slices){
+                        if((grids == null) && bucketed)
+                            projections[j].addDataSetBucketed(h, k, pixels, length);
+                        else if(grids == null)
+                            projections[j].addDataSet(h, k, pixels, length);
+                        else
+                            projections[j].addDataSet(h, k, pixels, length, grids[j], worker);
+                    }
+                }
+                processedImages.incrementAndGet();
+            }
+        }
+        finally{
+            images.close();
+        }
+    }
+    
+    /**
+     * @return azimuthal angle of image with respect to 0 starting angle
+     * @param i index of image in the loaded scan
+     */
+    private double getImageAngle(int i){
+        return (firstImage-1)*azimuthalStep + i*azimuthalStep;
+    }
+    
+    /**
+     * Finds images from first (inclusive) to last (exclusive) in which any pixel of the
+     * rows can fall into the H/K window, all images are visible if there is no window
+     */
+    private boolean[] getVisibleImages(int first, int last, int[] rows){
+        boolean[] visible = new boolean[last - first];
+        for(int i = first; i < last; i++){
+            visible[i - first] = (windowBounds == null) || windowBounds.isVisible(rows, getImageAngle(i));
+        }
+        return visible;
+    }
+    
+    /**
+     * The same as createPrefetcher(first, last, rows), but only visible images are read
+     * @param visible visible[i - first] shows that image i is read
+     */
+    private FramePrefetcher createPrefetcher(int first, int last, int[] rows, boolean[] visible){
+        List<String> paths = new ArrayList<String>();
+        for(int i = first; i < last; i++){
+            if(visible[i - first])
+                paths.add(imageAbsolutePaths[i]);
+        }
+        return createPrefetcher(paths.toArray(new String[paths.size()]), 0, paths.size(), rows);
+    }
+    
+    /**
+     * Creates reader of images from first (inclusive) to last (exclusive), which are
+     * rotated and flipped in reader threads. During binning readers are shared by workers
+     * (see startReaders()), otherwise the reader has its own threads.
+     * @param rows if not null, only these rows of images are read (see readRows())
+     */
+    private FramePrefetcher createPrefetcher(int first, int last, int[] rows){
+        return createPrefetcher(imageAbsolutePaths, first, last, rows);
+    }
+    
+    private FramePrefetcher createPrefetcher(String[] paths, int first, int last, final int[] rows){
+        if(readers != null){
+            return new FramePrefetcher(paths, first, last, readers, workerDepth){
+                @Override
+                protected ImageProcessor decode(String path) throws Exception{
+                    return decodeImage(path, rows);
+                }
+            };
+        }
+        return new FramePrefetcher(paths, first, last, prefetchDepth, prefetchDepth){
+            @Override
+            protected ImageProcessor decode(String path) throws Exception{
+                return decodeImage(path, rows);
+            }
+        };
+    }
+    
+    /**
+     * Opens rotated and flipped image or only its rows
+     * @param rows if not null, only these rows of image are read (see readRows())
+     */
+    private ImageProcessor decodeImage(String path, int[] rows) throws Exception{
+        if(rows == null)
+            return getImageProcessor(path);
+        return readRows(path, rows);
+    }
+    
+    /**
+     * Reads only the specified rows of rotated and flipped image. Uncompressed TIFF 
+     * files are read by TiffRowReader, which doesn't decode the whole image, other
+     * files are opened and transformed completely.
+     * @param path absolute path of image
+     * @param rows vertical pixel positions of rows
+     * @return image of detector width, which line j contains row rows[j]
+     */
+    protected ImageProcessor readRows(String path, int[] rows) throws Exception{
+        int imageWidth = experiment.getDetectorSizeInPixelsX();
+        float[] lines = new float[rows.length*imageWidth];
+        FrameOrientation orientation = getOrientation();
+        TiffRowReader reader = TiffRowReader.open(path, orientation);
+        boolean readDirectly = (reader != null) && (reader.getWidth() == imageWidth);
+        for(int row : rows){
+            readDirectly &= (reader != null) && (row >= 0) && (row < reader.getHeight());
+        }
+        if(reader != null){
+            try{
+                if(readDirectly)
+                    reader.readRows(rows, lines);
+            }
+            finally{
+                reader.close();
+            }
+        }
+        if(!readDirectly){
+            ImageProcessor ip = (new ImagePlus(path)).getProcessor();
+            boolean indexMapping = orientation.isIndexMapping(ip.getWidth(), ip.getHeight());
+            if(!indexMapping)
+                ip = orientation.apply(ip, ip.getWidth(), ip.getHeight());
+            double[] line = new double[imageWidth];
+            for(int j = 0; j < rows.length; j++){
+                if(indexMapping && (rows[j] >= 0) && (rows[j] < ip.getHeight()) && (imageWidth <= ip.getWidth()))
+                    orientation.getRow(ip, rows[j], line);
+                else
+                    line = ip.getLine(0, rows[j], imageWidth, rows[j]);
+                for(int x = 0; x < imageWidth; x++){
+                    lines[j*imageWidth + x] = (float)line[x];
+                }
+            }
+        }
+        return new FloatProcessor(imageWidth, rows.length, lines);
+    }
+    
+    private void updateProgress(int processedImages, int imagesNumber){
+        if(pBar == null)
+            return;
+        pBar.setValue(Math.round(100f*processedImages/imagesNumber));
+        pBar.update(pBar.getGraphics());
+    }
+    
+    /**
+     * Fills the arrays with h- and k-coordinates of detector row pixels at given azimuthal angle.
+     * Coordinates are taken from the geometry map which is calculated once per experiment,
+     * rows outside of the detector are transformed directly
+     * @param z vertical pixel position from top left corner
+     * @param omega azimuthal angle of sample rotation with respect to 0 starting angle
+     * @param rowH array for h-coordinates
+     * @param rowK array for k-coordinates
+     */
+    private void getRowCoordinates(int z, double omega, double[] rowH, double[] rowK) throws Exception{
+        GeometryMap map = experiment.getGeometryMap();
+        if(map.contains(0, z) && (rowH.length == map.getWidth())){
+            map.getRowHK(z, omega, rowH, rowK);
+            return;
+        }
+        experiment.rowToHKL(z, 0, rowH.length, omega, rowH, rowK, null);
+    }
+    
+    /**
+     * The same as getRowCoordinates(z, omega, rowH, rowK) for the part of row, arrays
+     * are filled starting from index 0
+     * @param x0 horizontal position of the first pixel
+     * @param length number of pixels
+     */
+    private void getRowCoordinates(int z, int x0, int length, double omega, double[] rowH, double[] rowK) throws Exception{
+        GeometryMap map = experiment.getGeometryMap();
+        if(map.contains(x0, z) && map.contains(x0 + length - 1, z)){
+            map.getRowHK(z, x0, length, omega, rowH, rowK);
+            return;
+        }
+        experiment.rowToHKL(z, x0, length, omega, rowH, rowK, null);
+    }
+    
+    /**
+     * Returns intensities of pixels of the image row. If user has chosen to apply
+     * correction factors, intensities are divided by factors from the correction map,
+     * which is calculated once per experiment
+     * @param ip image
+     * @param z vertical pixel position from top left corner
+     * @param width number of pixels in the row
+     */
+    private double[] getPixelsLine(ImageProcessor ip, int z, int width){
+        double[] pixels = new double[width];
+        getPixelsLine(ip, z, z, pixels);
+        return pixels;
+    }
+    
+    /**
+     * The same as getPixelsLine(ip, z, width) for the image containing only some rows
+     * of detector. Intensities are written to the array, so it can be reused for all rows
+     * @param line row of image
+     * @param z vertical pixel position of this row on detector
+     * @param pixels array which is filled with intensities starting from x = 0
+     */
+    private void getPixelsLine(ImageProcessor ip, int line, int z, double[] pixels){
+        int width = ip.getWidth();
+        if((ip instanceof FloatProcessor) && (line >= 0) && (line < ip.getHeight()) && (pixels.length <= width)){
+            float[] data = (float[])ip.getPixels();
+            for(int x = 0; x < pixels.length; x++){
+                pixels[x] = data[line*width + x];
+            }
+        }
+        else{
+            for(int x = 0; x < pixels.length; x++){
+                pixels[x] = ip.getPixelValue(x, line);
+            }
+        }
+        if(applyCorrections){
+            CorrectionMap corrections = experiment.getCorrectionMap();
+            if(corrections.contains(0, z)){
+                corrections.correctRow(z, pixels);
+            }
+            else{
+                for(int x = 0; x < pixels.length; x++){
+                    double factor = experiment.getTotalCorrectionFactor(x, z);
+                    pixels[x] = ((factor > 0) && !Double.isInfinite(factor)) ? pixels[x]/factor : 0;
+                }
+            }
+        }
+    }
+    
     protected ImageProcessor getImageProcessor(String path){
         ImageProcessor ip = (new ImagePlus(path)).getProcessor();
-        ip.rotate(imageRotation);
-        if(imageFlipHoriz)
-            ip.flipHorizontal();
-        if(imageFlipVert)
-            ip.flipVertical();
-        return ip;    
+        return getOrientation().apply(ip, ip.getWidth(), ip.getHeight());
+    }
+    
+    private FrameOrientation getOrientation(){
+        return new FrameOrientation(imageRotation, imageFlipHoriz, imageFlipVert);
     }    
 }
@@ -1,6 +1,10 @@
 import ij.ImagePlus;
 import ij.gui.NewImage;
 import ij.process.ImageProcessor;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
 
 /**
  *
@@ -9,17 +13,77 @@ import ij.process.ImageProcessor;
  * intensity vs hk-coordinates 
  */
 public class HKprojection {
+    /**
+     * The way intensities of pixels falling into the same point are combined.
+     * Every mode is merged by an associative and commutative operation, so the
+     * result doesn't depend on how pixels were distributed between projections
+     * (threads or partial runs) before mergeProjection().
+     */
+    public static enum Aggregation {
+        MAX("Maximum"), // The highest intensity, points without pixels are 0
+        SUM("Sum"), // Sum of intensities
+        MEAN("Mean"), // Sum of intensities divided by number of pixels
+        COUNT("Number of pixels"); // Number of pixels (hits)
+
+        private final String label;
+
+        private Aggregation(String label){
+            this.label = label;
+        }
+
+        /**
+         * @return name of mode for dialogs
+         */
+        public String getLabel(){
+            return label;
+        }
+
+        /**
+         * @return names of all modes in order of values()
+         */
+        public static String[] getLabels(){
+            Aggregation[] modes = values();
+            String[] labels = new String[modes.length];
+            for(int i = 0; i < modes.length; i++){
+                labels[i] = modes[i].label;
+            }
+            return labels;
+        }
+    }
+
+    private static final int TILE_BITS = 6; // Tiles of 64x64 points (16 kB) fit into processor cache
+    private static final int TILE_SIZE = 1 << TILE_BITS;
+    private static final int TILE_MASK = TILE_SIZE - 1;
+    
     private double lValue; // Vertical coordinate of projection in rec. space
-    private int[][] data; //Final array that contains h, k, intensity
+    private Aggregation aggregation; // Way of combining pixels in one point
+    private int sizeH, sizeK; // Number of points along h and k
+    private int tilesK; // Number of tiles along k
+    private float[][] tiles; // Maximal or summed intensities of points in tiles of TILE_SIZE x TILE_SIZE
+                             // points (not used for COUNT), tile is allocated when a pixel falls into it
+    private int[][] counts; // Numbers of pixels in points (for MEAN and COUNT only), tiles as above
     
     private int[] hkLimits = new int[6]; // Boundary values minH maxH minK maxK minL maxL
     private int overmeasure; //Just in case if coordinates will overcome the limits of array
     private int resolution; //Number of steps in one reciprocal unit
-    private ImagePlus ip; //Image of projection 
+    private ImagePlus ip; //Image of projection
+    
+    //Working arrays of addDataSetBucketed(), one set per thread is shared by all projections
+    private static final ThreadLocal<ScatterBuffer> SCATTER_BUFFER = new ThreadLocal<ScatterBuffer>(){
+        @Override
+        protected ScatterBuffer initialValue(){
+            return new ScatterBuffer();
+        }
+    }; 
     
     public HKprojection(double[] hklLimits, double l, int res){
+        this(hklLimits, l, res, Aggregation.MAX);
+    }
+
+    public HKprojection(double[] hklLimits, double l, int res, Aggregation aggregation){
         lValue = l;
         resolution = res;
+        this.aggregation = aggregation;
         overmeasure = (int)(resolution*0.1);
         if(overmeasure%2 > 0)
             overmeasure += 1;
@@ -27,26 +91,623 @@ public class HKprojection {
             hkLimits[i] = (int)Math.round(hklLimits[i]*resolution);
         }
         //For each value of H there are number of k values, for each of which the intensity is defined
-        data = new int[Math.abs(hkLimits[0])+hkLimits[1] + overmeasure + 1][Math.abs(hkLimits[2])+hkLimits[3] + overmeasure + 1];
+        //Limits don't have to include zero (e.g. window around one reflection)
+        sizeH = hkLimits[1] - hkLimits[0] + overmeasure + 1;
+        sizeK = hkLimits[3] - hkLimits[2] + overmeasure + 1;
+        allocateTiles();
     } 
     
+    private HKprojection(){
+    }
+    
+    /**
+     * Creates empty projection with the same limits, resolution and L-value as template
+     */
+    private HKprojection(HKprojection template, Aggregation aggregation){
+        lValue = template.lValue;
+        resolution = template.resolution;
+        this.aggregation = aggregation;
+        overmeasure = template.overmeasure;
+        hkLimits = template.hkLimits.clone();
+        sizeH = template.sizeH;
+        sizeK = template.sizeK;
+        allocateTiles();
+    }
+    
+    private void allocateTiles(){
+        tilesK = (sizeK + TILE_SIZE - 1) >> TILE_BITS;
+        int tilesNumber = ((sizeH + TILE_SIZE - 1) >> TILE_BITS)*tilesK;
+        tiles = new float[tilesNumber][];
+        counts = new int[tilesNumber][];
+    }
+
+    private boolean hasIntensities(){
+        return aggregation != Aggregation.COUNT;
+    }
+
+    private boolean hasCounts(){
+        return (aggregation == Aggregation.MEAN) || (aggregation == Aggregation.COUNT);
+    }
+    
+    /**
+     * @return empty projection of the same size and aggregation mode, e.g. private
+     *         accumulator of one worker thread
+     */
+    protected HKprojection createEmptyCopy(){
+        return new HKprojection(this, aggregation);
+    }
+    
+    /**
+     * @return maximal size of projection data in memory in bytes (when all tiles are allocated)
+     */
+    protected long getDataSize(){
+        return 4L*sizeH*sizeK*((hasIntensities() ? 1 : 0) + (hasCounts() ? 1 : 0));
+    }
+    
+    /**
+     * @return size of currently allocated tiles in bytes
+     */
+    protected long getAllocatedSize(){
+        long size = 0;
+        for(int t = 0; t < tiles.length; t++){
+            if(tiles[t] != null)
+                size += 4L*tiles[t].length;
+            if(counts[t] != null)
+                size += 4L*counts[t].length;
+        }
+        return size;
+    }
+    
     public double getLValue(){
         return lValue;
     }
     
+    public Aggregation getAggregation(){
+        return aggregation;
+    }
+
+    /**
+     * @return true if other projection has the same grid, L-value and aggregation
+     *         mode, so it can be merged into this one
+     */
+    protected boolean isCompatible(HKprojection other){
+        return (other.aggregation == aggregation) && (other.resolution == resolution) &&
+               (other.sizeH == sizeH) && (other.sizeK == sizeK) &&
+               Arrays.equals(other.hkLimits, hkLimits) &&
+               (Math.abs(other.lValue - lValue) < 0.5/resolution);
+    }
+
+    /**
+     * Writes the state of projection (grid, L-value, aggregation mode and allocated
+     * tiles of accumulators), so partial projections calculated in separate runs
+     * can be merged later (see PartialProjectionFile)
+     */
+    protected void write(DataOutputStream out) throws IOException{
+        out.writeDouble(lValue);
+        out.writeUTF(aggregation.name());
+        out.writeInt(resolution);
+        out.writeInt(overmeasure);
+        for(int limit : hkLimits){
+            out.writeInt(limit);
+        }
+        out.writeInt(sizeH);
+        out.writeInt(sizeK);
+        int allocatedTiles = 0;
+        for(int t = 0; t < tiles.length; t++){
+            if(isTileAllocated(t))
+                allocatedTiles++;
+        }
+        out.writeInt(allocatedTiles);
+        for(int t = 0; t < tiles.length; t++){
+            if(!isTileAllocated(t))
+                continue;
+            out.writeInt(t);
+            if(hasIntensities()){
+                for(float value : tiles[t]){
+                    out.writeFloat(value);
+                }
+            }
+            if(hasCounts()){
+                for(int count : counts[t]){
+                    out.writeInt(count);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads projection written by write()
+     */
+    protected static HKprojection read(DataInputStream in) throws IOException{
+        HKprojection hk = new HKprojection();
+        hk.lValue = in.readDouble();
+        try{
+            hk.aggregation = Aggregation.valueOf(in.readUTF());
+        }
+        catch(IllegalArgumentException e){
+            throw new IOException("Unknown aggregation mode of projection.");
+        }
+        hk.resolution = in.readInt();
+        hk.overmeasure = in.readInt();
+        for(int i = 0; i < hk.hkLimits.length; i++){
+            hk.hkLimits[i] = in.readInt();
+        }
+        hk.sizeH = in.readInt();
+        hk.sizeK = in.readInt();
+        if((hk.sizeH <= 0) || (hk.sizeK <= 0))
+            throw new IOException("Wrong size of projection " + hk.sizeH + " x " + hk.sizeK);
+        hk.allocateTiles();
+        int allocatedTiles = in.readInt();
+        for(int i = 0; i < allocatedTiles; i++){
+            int t = in.readInt();
+            if((t < 0) || (t >= hk.tiles.length))
+                throw new IOException("Wrong tile index " + t);
+            if(hk.hasIntensities()){
+                hk.tiles[t] = new float[TILE_SIZE*TILE_SIZE];
+                for(int j = 0; j < hk.tiles[t].length; j++){
+                    hk.tiles[t][j] = in.readFloat();
+                }
+            }
+            if(hk.hasCounts()){
+                hk.counts[t] = new int[TILE_SIZE*TILE_SIZE];
+                for(int j = 0; j < hk.counts[t].length; j++){
+                    hk.counts[t][j] = in.readInt();
+                }
+            }
+        }
+        return hk;
+    }
+
+    private boolean isTileAllocated(int tileIndex){
+        return (tiles[tileIndex] != null) || (counts[tileIndex] != null);
+    }
+    
+    /**
+     * @return resulting intensity of point (h;k) according to aggregation mode,
+     *         where h and k are indices from the lowest limits
+     */
+    private float getValue(int h, int k){
+        int tileIndex = (h >> TILE_BITS)*tilesK + (k >> TILE_BITS);
+        if(!isTileAllocated(tileIndex))
+            return 0;
+        int index = ((h & TILE_MASK) << TILE_BITS) | (k & TILE_MASK);
+        switch(aggregation){
+            case MEAN:
+                int count = counts[tileIndex][index];
+                return (count == 0) ? 0 : tiles[tileIndex][index]/count;
+            case COUNT:
+                return counts[tileIndex][index];
+            default:
+                return tiles[tileIndex][index];
+        }
+    }
+
+    /**
+     * Adds intensity of one pixel to point (h;k). In MAX mode tile is allocated
+     * only for positive intensity, because all points are 0 initially
+     */
+    private void putValue(int h, int k, float intensity){
+        if((h < 0) || (h >= sizeH) || (k < 0) || (k >= sizeK))
+            throw new ArrayIndexOutOfBoundsException("Point (" + h + ";" + k + ") is outside of projection");
+        if(Float.isNaN(intensity) || ((aggregation == Aggregation.MAX) && (intensity <= 0)))
+            return;
+        int tileIndex = (h >> TILE_BITS)*tilesK + (k >> TILE_BITS);
+        allocateTile(tileIndex);
+        int index = ((h & TILE_MASK) << TILE_BITS) | (k & TILE_MASK);
+        switch(aggregation){
+            case MAX:
+                if (tiles[tileIndex][index] < intensity)
+                    tiles[tileIndex][index] = intensity;
+                break;
+            case SUM:
+                tiles[tileIndex][index] += intensity;
+                break;
+            case MEAN:
+                tiles[tileIndex][index] += intensity;
+                counts[tileIndex][index]++;
+                break;
+            default:
+                counts[tileIndex][index]++;
+                break;
+        }
+    }
+    
+    private void allocateTile(int tileIndex){
+        if(isTileAllocated(tileIndex))
+            return;
+        if(hasIntensities())
+            tiles[tileIndex] = new float[TILE_SIZE*TILE_SIZE];
+        if(hasCounts())
+            counts[tileIndex] = new int[TILE_SIZE*TILE_SIZE];
+    }
+    
     protected void addDataSet(double[][] intensityArray){
-        int[][] intensity = new int[intensityArray.length][intensityArray[0].length];
-        for(int i = 0; i < intensityArray.length; i++){
-            intensity[i][0] = (int)Math.round(intensityArray[i][0]*resolution);
-            intensity[i][1] = (int)Math.round(intensityArray[i][1]*resolution);
-            intensity[i][2] = (int)Math.round(intensityArray[i][2]);
+        int h = 0, k = 0;
+        for(int j = 0; j < intensityArray.length; j++){
+            h = (int)Math.round(intensityArray[j][0]*resolution) + getHShift();
+            k = (int)Math.round(intensityArray[j][1]*resolution) + getKShift();
+            putValue(h, k, (float)intensityArray[j][2]);
         }
+    }
+    
+    /**
+     * The same as addDataSet(double[][]) for the data stored in separate arrays
+     * @param hArray h-coordinates of pixels
+     * @param kArray k-coordinates of pixels
+     * @param intensityArray intensities of pixels
+     */
+    protected void addDataSet(double[] hArray, double[] kArray, double[] intensityArray){
+        addDataSet(hArray, kArray, intensityArray, intensityArray.length);
+    }
+    
+    /**
+     * The same as addDataSet(double[], double[], double[]) for the first length pixels
+     */
+    protected void addDataSet(double[] hArray, double[] kArray, double[] intensityArray, int length){
+        int hShift = getHShift();
+        int kShift = getKShift();
         int h = 0, k = 0;
-        for(int j = 0; j < intensity.length; j++){
-            h = intensity[j][0] + Math.abs(this.hkLimits[0]) + (int)(this.overmeasure/2);
-            k = intensity[j][1] + Math.abs(this.hkLimits[2]) + (int)(this.overmeasure/2);
-            if (this.data[h][k] < intensity[j][2]){
-                this.data[h][k] = intensity[j][2];
+        for(int j = 0; j < length; j++){
+            h = (int)Math.round(hArray[j]*resolution) + hShift;
+            k = (int)Math.round(kArray[j]*resolution) + kShift;
+            putValue(h, k, (float)intensityArray[j]);
+        }
+    }
+    
+    /**
+     * The same as addDataSet(double[], double[], double[]), but pixels are first
+     * bucketed by tiles they fall into (counting sort, stable), then all updates of
+     * one tile are applied together, so each tile is fetched into cache once per
+     * data set instead of every time the pixels return to it.
+     */
+    protected void addDataSetBucketed(double[] hArray, double[] kArray, double[] intensityArray){
+        addDataSetBucketed(hArray, kArray, intensityArray, intensityArray.length);
+    }
+    
+    /**
+     * The same as addDataSetBucketed(double[], double[], double[]) for the first length pixels
+     */
+    protected void addDataSetBucketed(double[] hArray, double[] kArray, double[] intensityArray, int length){
+        int hShift = getHShift();
+        int kShift = getKShift();
+        ScatterBuffer buffer = SCATTER_BUFFER.get();
+        buffer.prepare(length, tiles.length);
+        int stamp = buffer.stamp;
+        int pointsNumber = 0, bucketsNumber = 0;
+        for(int j = 0; j < length; j++){
+            int h = (int)Math.round(hArray[j]*resolution) + hShift;
+            int k = (int)Math.round(kArray[j]*resolution) + kShift;
+            if((h < 0) || (h >= sizeH) || (k < 0) || (k >= sizeK))
+                throw new ArrayIndexOutOfBoundsException("Point (" + h + ";" + k + ") is outside of projection");
+            float intensity = (float)intensityArray[j];
+            if(Float.isNaN(intensity) || ((aggregation == Aggregation.MAX) && (intensity <= 0)))
+                continue;
+            int tileIndex = (h >> TILE_BITS)*tilesK + (k >> TILE_BITS);
+            if(buffer.tileStamps[tileIndex] != stamp){ //The first pixel in this tile
+                buffer.tileStamps[tileIndex] = stamp;
+                buffer.tileBuckets[tileIndex] = bucketsNumber;
+                buffer.bucketTiles[bucketsNumber] = tileIndex;
+                buffer.bucketStarts[bucketsNumber + 1] = 0;
+                bucketsNumber++;
+            }
+            int bucket = buffer.tileBuckets[tileIndex];
+            buffer.bucketStarts[bucket + 1]++;
+            buffer.pointBuckets[pointsNumber] = bucket;
+            buffer.pointIndices[pointsNumber] = ((h & TILE_MASK) << TILE_BITS) | (k & TILE_MASK);
+            buffer.pointValues[pointsNumber] = intensity;
+            pointsNumber++;
+        }
+        //Positions of buckets in sorted arrays
+        buffer.bucketStarts[0] = 0;
+        for(int b = 0; b < bucketsNumber; b++){
+            buffer.bucketStarts[b + 1] += buffer.bucketStarts[b];
+            buffer.bucketEnds[b] = buffer.bucketStarts[b];
+        }
+        for(int i = 0; i < pointsNumber; i++){
+            int position = buffer.bucketEnds[buffer.pointBuckets[i]]++;
+            buffer.sortedIndices[position] = buffer.pointIndices[i];
+            buffer.sortedValues[position] = buffer.pointValues[i];
+        }
+        //Updates are applied tile by tile
+        for(int b = 0; b < bucketsNumber; b++){
+            int tileIndex = buffer.bucketTiles[b];
+            allocateTile(tileIndex);
+            float[] tile = tiles[tileIndex];
+            int[] tileCounts = counts[tileIndex];
+            int end = buffer.bucketStarts[b + 1];
+            switch(aggregation){
+                case MAX:
+                    for(int p = buffer.bucketStarts[b]; p < end; p++){
+                        if(tile[buffer.sortedIndices[p]] < buffer.sortedValues[p])
+                            tile[buffer.sortedIndices[p]] = buffer.sortedValues[p];
+                    }
+                    break;
+                case SUM:
+                    for(int p = buffer.bucketStarts[b]; p < end; p++){
+                        tile[buffer.sortedIndices[p]] += buffer.sortedValues[p];
+                    }
+                    break;
+                case MEAN:
+                    for(int p = buffer.bucketStarts[b]; p < end; p++){
+                        tile[buffer.sortedIndices[p]] += buffer.sortedValues[p];
+                        tileCounts[buffer.sortedIndices[p]]++;
+                    }
+                    break;
+                default:
+                    for(int p = buffer.bucketStarts[b]; p < end; p++){
+                        tileCounts[buffer.sortedIndices[p]]++;
+                    }
+                    break;
+            }
+        }
+    }
+    
+    /**
+     * The same as addDataSet(double[], double[], double[]), but pixels are added to
+     * the grid shared by several threads, which is merged into this projection later
+     * by mergeGrid(). Can be called from several threads at once.
+     * @param grid grid created by createConcurrentGrid()
+     * @param stripe number of calling thread
+     */
+    protected void addDataSet(double[] hArray, double[] kArray, double[] intensityArray, ConcurrentHKGrid grid, int stripe){
+        addDataSet(hArray, kArray, intensityArray, intensityArray.length, grid, stripe);
+    }
+    
+    /**
+     * The same as addDataSet(double[], double[], double[], ConcurrentHKGrid, int) for the first length pixels
+     */
+    protected void addDataSet(double[] hArray, double[] kArray, double[] intensityArray, int length, ConcurrentHKGrid grid, int stripe){
+        int hShift = getHShift();
+        int kShift = getKShift();
+        int h = 0, k = 0;
+        for(int j = 0; j < length; j++){
+            h = (int)Math.round(hArray[j]*resolution) + hShift;
+            k = (int)Math.round(kArray[j]*resolution) + kShift;
+            if((h < 0) || (h >= sizeH) || (k < 0) || (k >= sizeK))
+                throw new ArrayIndexOutOfBoundsException("Point (" + h + ";" + k + ") is outside of projection");
+            float intensity = (float)intensityArray[j];
+            if(Float.isNaN(intensity) || ((aggregation == Aggregation.MAX) && (intensity <= 0)))
+                continue;
+            grid.add(stripe, h*sizeK + k, intensity);
+        }
+    }
+    
+    /**
+     * Moves the pixels falling into projection to the beginning of arrays (in the same
+     * order), other pixels are dropped. Is used when projection covers only a window
+     * of reciprocal space, because adding a pixel outside of projection is an error.
+     * @param length number of pixels
+     * @return number of pixels inside of projection
+     */
+    protected int clip(double[] hArray, double[] kArray, double[] intensityArray, int length){
+        int hShift = getHShift();
+        int kShift = getKShift();
+        int inside = 0;
+        for(int j = 0; j < length; j++){
+            int h = (int)Math.round(hArray[j]*resolution) + hShift;
+            int k = (int)Math.round(kArray[j]*resolution) + kShift;
+            if((h < 0) || (h >= sizeH) || (k < 0) || (k >= sizeK))
+                continue;
+            hArray[inside] = hArray[j];
+            kArray[inside] = kArray[j];
+            intensityArray[inside] = intensityArray[j];
+            inside++;
+        }
+        return inside;
+    }
+    
+    /**
+     * @return index of the point with h = 0 (h-coordinates of points are counted from
+     *         the lower limit with the half of the margin)
+     */
+    private int getHShift(){
+        return -this.hkLimits[0] + this.overmeasure/2;
+    }
+    
+    /**
+     * @return index of the point with k = 0
+     */
+    private int getKShift(){
+        return -this.hkLimits[2] + this.overmeasure/2;
+    }
+    
+    /**
+     * @return limits minH maxH minK maxK of the region covered by points of projection
+     *         (including the margin), pixels outside of them are not added
+     */
+    protected double[] getCoveredLimits(){
+        int hShift = getHShift();
+        int kShift = getKShift();
+        return new double[] {(-hShift - 0.5)/resolution, (sizeH - hShift - 0.5)/resolution,
+                             (-kShift - 0.5)/resolution, (sizeK - kShift - 0.5)/resolution};
+    }
+    
+    /**
+     * @return empty grid of the same size and aggregation mode, which can be filled
+     *         by several threads at once
+     */
+    protected ConcurrentHKGrid createConcurrentGrid(int stripes){
+        return new ConcurrentHKGrid(sizeH*sizeK, aggregation, stripes);
+    }
+    
+    /**
+     * Merges the grid filled by addDataSet(..., grid, stripe) into this projection
+     * in the same way as mergeProjection() does
+     */
+    protected void mergeGrid(ConcurrentHKGrid grid){
+        for(int h = 0; h < sizeH; h++){
+            for(int k = 0; k < sizeK; k++){
+                addPoint(h, k, grid.getIntensity(h*sizeK + k), grid.getCount(h*sizeK + k));
+            }
+        }
+    }
+    
+    /**
+     * @return empty polar grid covering this projection with the radial step equal to
+     *         the smaller step of projection in the orthogonal basis (h, a1/a2*k). Grid
+     *         is the ring sector around the points, it is the full circle only if the
+     *         projection contains the origin.
+     * @param azimuthalStep angular step between images in degrees
+     * @param latticeRatio a1/a2 ratio of in-plane lattice parameters
+     */
+    protected PolarHKGrid createPolarGrid(double azimuthalStep, double latticeRatio){
+        int hShift = getHShift();
+        int kShift = getKShift();
+        //Ring sector containing centers of points
+        double[] bounds = HKWindow.getBoxBounds((double)(-hShift)/resolution, (double)(sizeH - 1 - hShift)/resolution,
+                                                latticeRatio*(-kShift)/resolution, latticeRatio*(sizeK - 1 - kShift)/resolution);
+        double radialStep = Math.min(1, latticeRatio)/resolution;
+        return new PolarHKGrid(bounds[0] - radialStep, bounds[1] + radialStep, bounds[2], bounds[3], radialStep, 
+                               azimuthalStep, latticeRatio, aggregation);
+    }
+    
+    /**
+     * Resamples the polar grid into this projection. Every bin is added to the point
+     * which contains its center, so sums and counts are kept. Bins are not larger than
+     * points, but some points don't contain any bin center because of different shapes
+     * of bins and points. In MAX and MEAN modes these points take the bin which contains
+     * their center, in SUM and COUNT modes they stay empty. Points are merged in the
+     * same way as mergeProjection() does.
+     *
+     * If pixels were split, the grid has no gaps and it is sampled instead: every point
+     * takes the bin which contains its center. Maxima are taken as they are, means are
+     * added as one pixel, sums are scaled by the ratio of point and bin areas.
+     * @param grid grid created by createPolarGrid()
+     * @param splitPixels true if pixels were split over bins (see PolarHKGrid.getRowSplitting())
+     */
+    protected void mergePolarGrid(PolarHKGrid grid, boolean splitPixels){
+        int hShift = getHShift();
+        int kShift = getKShift();
+        if(splitPixels){
+            samplePolarGrid(grid, hShift, kShift);
+            return;
+        }
+        boolean fillGaps = (aggregation == Aggregation.MAX) || (aggregation == Aggregation.MEAN);
+        boolean[] covered = fillGaps ? new boolean[sizeH*sizeK] : null; //Points containing centers of bins
+        int angles = grid.getAngles(); //Bins of the sector of grid
+        double[] cos = new double[angles], sin = new double[angles];
+        for(int a = 0; a < angles; a++){
+            cos[a] = Math.cos(Math.toRadians((grid.getFirstAngle() + a)*grid.getAngularStep()))*resolution;
+            sin[a] = Math.sin(Math.toRadians((grid.getFirstAngle() + a)*grid.getAngularStep()))/grid.getLatticeRatio()*resolution;
+        }
+        for(int r = 0; r < grid.getRadii(); r++){
+            double radius = (grid.getInnerRadius() + r)*grid.getRadialStep();
+            for(int a = 0; a < angles; a++){
+                int h = (int)Math.round(radius*cos[a]) + hShift;
+                int k = (int)Math.round(radius*sin[a]) + kShift;
+                if((h < 0) || (h >= sizeH) || (k < 0) || (k >= sizeK))
+                    continue;
+                if(fillGaps)
+                    covered[h*sizeK + k] = true;
+                mergeBin(h, k, grid, r*angles + a);
+            }
+        }
+        if(!fillGaps)
+            return;
+        for(int h = 0; h < sizeH; h++){
+            for(int k = 0; k < sizeK; k++){
+                if(covered[h*sizeK + k])
+                    continue;
+                int bin = grid.getBin((double)(h - hShift)/resolution, (double)(k - kShift)/resolution);
+                if(bin >= 0)
+                    mergeBin(h, k, grid, bin);
+            }
+        }
+    }
+    
+    /**
+     * Adds to every point the bin of polar grid containing its center (see mergePolarGrid())
+     */
+    private void samplePolarGrid(PolarHKGrid grid, int hShift, int kShift){
+        double pointArea = grid.getLatticeRatio()/((double)resolution*resolution);
+        for(int h = 0; h < sizeH; h++){
+            for(int k = 0; k < sizeK; k++){
+                int bin = grid.getBin((double)(h - hShift)/resolution, (double)(k - kShift)/resolution);
+                if(bin < 0)
+                    continue;
+                float intensity = grid.getIntensity(bin);
+                float weight = grid.getWeight(bin);
+                switch(aggregation){
+                    case MEAN:
+                        if(weight > 0)
+                            addPoint(h, k, intensity/weight, 1);
+                        break;
+                    case SUM:
+                        addPoint(h, k, (float)(intensity*pointArea/grid.getBinArea(bin)), 0);
+                        break;
+                    case COUNT: //Numbers of pixels are not split (see HKextractor)
+                        addPoint(h, k, 0, (int)weight);
+                        break;
+                    default:
+                        addPoint(h, k, intensity, 0);
+                        break;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Merges the bin of polar grid into point (h;k), where h and k are indices from
+     * the lowest limits
+     */
+    private void mergeBin(int h, int k, PolarHKGrid grid, int bin){
+        addPoint(h, k, grid.getIntensity(bin), (int)grid.getWeight(bin));
+    }
+    
+    /**
+     * Merges intensity and number of pixels into point (h;k) in the same way as
+     * mergeProjection() does, where h and k are indices from the lowest limits
+     */
+    private void addPoint(int h, int k, float intensity, int count){
+        if((intensity == 0) && (count == 0))
+            return;
+        int tileIndex = (h >> TILE_BITS)*tilesK + (k >> TILE_BITS);
+        allocateTile(tileIndex);
+        int index = ((h & TILE_MASK) << TILE_BITS) | (k & TILE_MASK);
+        if(aggregation == Aggregation.MAX){
+            if(tiles[tileIndex][index] < intensity)
+                tiles[tileIndex][index] = intensity;
+            return;
+        }
+        if(hasIntensities())
+            tiles[tileIndex][index] += intensity;
+        if(hasCounts())
+            counts[tileIndex][index] += count;
+    }
+    
+    /**
+     * Merges other projection of the same size and aggregation mode into this one:
+     * maxima are compared, sums and counts are added
+     * @param other projection created by createEmptyCopy()
+     */
+    protected void mergeProjection(HKprojection other){
+        for(int t = 0; t < this.tiles.length; t++){
+            if(!other.isTileAllocated(t))
+                continue;
+            if(!this.isTileAllocated(t)){
+                this.tiles[t] = (other.tiles[t] == null) ? null : other.tiles[t].clone();
+                this.counts[t] = (other.counts[t] == null) ? null : other.counts[t].clone();
+                continue;
+            }
+            if(aggregation == Aggregation.MAX){
+                float[] tile = this.tiles[t], otherTile = other.tiles[t];
+                for(int i = 0; i < tile.length; i++){
+                    if(tile[i] < otherTile[i])
+                        tile[i] = otherTile[i];
+                }
+                continue;
+            }
+            if(hasIntensities()){
+                float[] tile = this.tiles[t], otherTile = other.tiles[t];
+                for(int i = 0; i < tile.length; i++){
+                    tile[i] += otherTile[i];
+                }
+            }
+            if(hasCounts()){
+                int[] tile = this.counts[t], otherTile = other.counts[t];
+                for(int i = 0; i < tile.length; i++){
+                    tile[i] += otherTile[i];
+                }
             }
         }
     }
@@ -54,10 +715,17 @@ public class HKprojection {
     protected double calculateMeanIntensity(){
         double meanIntensity = 0;
         int occupiedPixelCounter = 0;
-        for(int i = 0; i < this.data.length; i++){
-            for(int j = 0; j < this.data[i].length; j++){
-                if(this.data[i][j] > 0){
-                    meanIntensity += this.data[i][j];
+        for(int t = 0; t < this.tiles.length; t++){
+            if(!isTileAllocated(t))
+                continue;
+            int h0 = (t / tilesK) << TILE_BITS, k0 = (t % tilesK) << TILE_BITS;
+            for(int i = 0; i < TILE_SIZE*TILE_SIZE; i++){
+                int h = h0 + (i >> TILE_BITS), k = k0 + (i & TILE_MASK);
+                if((h >= sizeH) || (k >= sizeK))
+                    continue;
+                float value = getValue(h, k);
+                if(value > 0){
+                    meanIntensity += value;
                     occupiedPixelCounter++;
                 }
             }
@@ -68,39 +736,115 @@ public class HKprojection {
     protected ImageProcessor getProjectionProcessor(){
         String l = String.format("%.2f", this.lValue);
         ip = NewImage.createFloatImage("in-plane projection at L = " + l, 
-                                        Math.abs(this.hkLimits[0])+this.hkLimits[1] + this.overmeasure + 1, 
-                                        Math.abs(this.hkLimits[2])+this.hkLimits[3] + this.overmeasure + 1, 
+                                        this.sizeH, 
+                                        this.sizeK, 
                                         1, 
                                         NewImage.FILL_BLACK); 
         ImageProcessor hkProcessor = ip.getProcessor();
+        float[] pixels = (float[])hkProcessor.getPixels();
         
         double meanInt = this.calculateMeanIntensity();
-        for(int i = 0; i < this.data.length; i++){
+        for(int i = 0; i < this.sizeH; i++){
             int kCounter = 0;
-            for(int j = this.data[i].length - 1; j >= 0; j--){
-                if(this.data[i][j] < meanInt)
-                    hkProcessor.putPixelValue(i, kCounter, 0/*meanInt*/);
+            for(int j = this.sizeK - 1; j >= 0; j--){
+                float value = this.getValue(i, j);
+                if(value < meanInt)
+                    pixels[kCounter*this.sizeH + i] = 0/*meanInt*/;
                 else
-                    hkProcessor.putPixelValue(i, kCounter, this.data[i][j]);
+                    pixels[kCounter*this.sizeH + i] = value;
                 kCounter++;
             }
         }
         return ip.getProcessor();
     } 
     
+    /**
+     * Integrates adjacent slices: resulting intensities of slices (maxima, sums or
+     * counts) are added. Means are calculated over all pixels of slices: sums and
+     * numbers of pixels are added and divided once. Slices are not changed.
+     * @param hkStack slices of the same size
+     * @param l L-value of resulting projection
+     * @return new projection in MEAN mode for slices in MEAN mode, otherwise in SUM mode
+     */
     public static HKprojection sumUpProjections(HKprojection[] hkStack, double l){
-        HKprojection hkRes = hkStack[0];
-        hkRes.lValue = l;
-        for(int i = 1; i < hkStack.length; i++)
+        HKprojection hkRes = createIntegrated(hkStack[0], l);
+        for(int i = 0; i < hkStack.length; i++)
         {
-            for(int j = 0; j < hkStack[i].data.length; j++){
-                for(int k = 0; k < hkStack[i].data[j].length; k++){
-                    hkRes.data[j][k] += hkStack[i].data[j][k];
-                    //hkRes.data[j][k] = hkRes.data[j][k]/2;
-                }
-            }
+            hkRes.addIntegrated(hkStack[i]);
         }
         return hkRes;
     }
     
+    /**
+     * Creates empty projection for integration of slices (see addIntegrated())
+     * @param template slice with the same limits, resolution and aggregation mode
+     * @param l L-value of resulting projection
+     * @return projection in MEAN mode for MEAN slices, otherwise in SUM mode
+     */
+    protected static HKprojection createIntegrated(HKprojection template, double l){
+        HKprojection hkRes = new HKprojection(template, (template.aggregation == Aggregation.MEAN) ? Aggregation.MEAN : Aggregation.SUM);
+        hkRes.lValue = l;
+        return hkRes;
+    }
+    
+    /**
+     * Adds resulting intensities of the slice to this projection, so slices can be
+     * integrated one by one and released as soon as they are calculated. Slices in
+     * MEAN mode are merged as by mergeProjection(): sums and numbers of pixels are added.
+     * @param slice slice of the same size
+     */
+    protected void addIntegrated(HKprojection slice){
+        if(this.aggregation == Aggregation.MEAN){
+            mergeProjection(slice);
+            return;
+        }
+        for(int t = 0; t < slice.tiles.length; t++){
+            if(!slice.isTileAllocated(t))
+                continue;
+            if(this.tiles[t] == null)
+                this.tiles[t] = new float[TILE_SIZE*TILE_SIZE];
+            float[] tile = this.tiles[t];
+            int h0 = (t / this.tilesK) << TILE_BITS, k0 = (t % this.tilesK) << TILE_BITS;
+            for(int index = 0; index < tile.length; index++){
+                int h = h0 + (index >> TILE_BITS), k = k0 + (index & TILE_MASK);
+                if((h < this.sizeH) && (k < this.sizeK))
+                    tile[index] += slice.getValue(h, k);
+            }
+        }
+    }
+    
+    /**
+     * Working arrays for bucketing pixels of one data set by tiles
+     */
+    private static class ScatterBuffer {
+        private int[] tileStamps = new int[0]; // Number of the last data set which had pixels in the tile
+        private int[] tileBuckets = new int[0]; // Bucket of the tile in that data set
+        private int stamp; // Number of the current data set
+        private int[] pointBuckets, pointIndices, sortedIndices; // Buckets and indices in tile of pixels
+        private float[] pointValues, sortedValues; // Intensities of pixels
+        private int[] bucketTiles, bucketStarts, bucketEnds; // Tiles and positions of buckets in sorted arrays
+        
+        private void prepare(int pixelsNumber, int tilesNumber){
+            if(tileStamps.length < tilesNumber){
+                tileStamps = new int[tilesNumber];
+                tileBuckets = new int[tilesNumber];
+                stamp = 0;
+            }
+            if(++stamp == Integer.MAX_VALUE){ //Stamps start again
+                Arrays.fill(tileStamps, 0);
+                stamp = 1;
+            }
+            if((pointBuckets == null) || (pointBuckets.length < pixelsNumber)){
+                pointBuckets = new int[pixelsNumber];
+                pointIndices = new int[pixelsNumber];
+                sortedIndices = new int[pixelsNumber];
+                pointValues = new float[pixelsNumber];
+                sortedValues = new float[pixelsNumber];
+                bucketTiles = new int[pixelsNumber];
+                bucketStarts = new int[pixelsNumber + 1];
+                bucketEnds = new int[pixelsNumber];
+            }
+        }
+    }
+    
 }
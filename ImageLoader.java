@@ -52,6 +52,7 @@ public class ImageLoader {
         GenericDialog gd = new GenericDialog("Stack loading options");
         gd.addNumericField("Rotate clockwise:", 90, 2);
         gd.addCheckbox("Flip horizontally", true);
+        gd.addNumericField("Images read ahead", FramePrefetcher.DEFAULT_DEPTH, 0);
         //gd.addMessage("Crop images:");
         //gd.addNumericField("Width", stackWidth, 0);
         //gd.addNumericField("Height", stackHeight, 0);
@@ -62,27 +63,45 @@ public class ImageLoader {
             pBarFrame.setVisible(true);
             double rotation = gd.getNextNumber();
             boolean flip = gd.getNextBoolean();
+            final FrameOrientation orientation = new FrameOrientation(rotation, flip, false);
+            int prefetchDepth = Math.max(1, (int)gd.getNextNumber());
             //stackWidth = (int)gd.getNextNumber();
             //stackHeight = (int)gd.getNextNumber();
             stack = new ImageStack(stackWidth, stackHeight);
+            String[] paths = new String[files.length];
             for (int i = 0; i < files.length; i++ ) {
-                final int percent;
-                if(i == files.length - 1)
-                    percent = 100;
-                else
-                    percent = Math.round(((float)100/(float)files.length)*(float)(i+1));                
-                
-                ImageProcessor ip = (new ImagePlus(files[i].getAbsolutePath())).getProcessor();
-                ip.rotate(rotation);
-                if(flip)
-                    ip.flipHorizontal();
-                ip.setRoi(0, 0, stackWidth, stackHeight);
-                ip = ip.crop();
-                stack.addSlice(ip);
-                pBar.setValue(percent);
-                pBar.update(pBar.getGraphics());
+                paths[i] = files[i].getAbsolutePath();
+            }
+            //Next images are read, rotated and cropped in background while the current one is added to stack.
+            //Rotation, flip and cropping are done in one pass through the image
+            final int width = stackWidth, height = stackHeight;
+            FramePrefetcher images = new FramePrefetcher(paths, prefetchDepth, prefetchDepth){
+                @Override
+                protected ImageProcessor decode(String path) throws Exception{
+                    return orientation.apply(super.decode(path), width, height);
+                }
+            };
+            try{
+                for (int i = 0; i < files.length; i++ ) {
+                    final int percent;
+                    if(i == files.length - 1)
+                        percent = 100;
+                    else
+                        percent = Math.round(((float)100/(float)files.length)*(float)(i+1));                
+
+                    stack.addSlice(images.next());
+                    pBar.setValue(percent);
+                    pBar.update(pBar.getGraphics());
+                }
+            }
+            catch(Exception e){
+                IJ.error("Error", "File can't be open as an image: " + e.getMessage());
+                stack = null;
+            }
+            finally{
+                images.close();
+                pBarFrame.dispose();
             }
-            pBarFrame.dispose();
         }
         return stack;
     }
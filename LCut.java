@@ -0,0 +1,115 @@
+import java.util.Arrays;
+
+/**
+ *
+ * @author Mikhail Shipilin
+ * Detector pixels whose l-coordinates are in the interval around the L-value of
+ * in-plane cut (found by LIndex), with their h- and k-coordinates at zero azimuthal
+ * angle and correction factors. Unlike a detector row, the cut follows the change
+ * of l along the rows caused by curvature of Ewald sphere, so it contains exactly
+ * the pixels at requested L.
+ *
+ * Images are read by rows: all cuts of the calculation take intensities from one
+ * image containing only the rows which have pixels of any cut (see setReadRows()).
+ */
+public class LCut {
+    private final int width; // Detector width in pixels
+    private final int[] pixels; // Offsets z*width + x of pixels in ascending order
+    private final float[] h, k; // Coordinates of pixels at zero azimuthal angle
+    private final double latticeRatio; // a1/a2 ratio of in-plane lattice parameters
+    private float[] inverseFactors; // 1/(correction factor) of pixels, null if intensities are not corrected
+    private int[] positions; // Positions of pixels in image of read rows
+
+    /**
+     * Finds pixels of the cut
+     * @param map geometry map of detector
+     * @param fromL lower boundary of l (inclusive)
+     * @param toL upper boundary of l (exclusive)
+     */
+    public LCut(GeometryMap map, double fromL, double toL){
+        width = map.getWidth();
+        latticeRatio = map.getLatticeRatio();
+        pixels = map.getLIndex().getPixels(fromL, toL);
+        h = new float[pixels.length];
+        k = new float[pixels.length];
+        float[] mapH = map.getHArray(), mapK = map.getKArray();
+        for(int i = 0; i < pixels.length; i++){
+            h[i] = mapH[pixels[i]];
+            k[i] = mapK[pixels[i]];
+        }
+    }
+
+    /**
+     * @return number of pixels in the cut
+     */
+    public int size(){
+        return pixels.length;
+    }
+
+    /**
+     * @return vertical positions of detector rows containing pixels of the cut in ascending order
+     */
+    public int[] getRows(){
+        int[] rows = new int[pixels.length];
+        int size = 0;
+        for(int pixel : pixels){
+            int z = pixel/width;
+            if((size == 0) || (rows[size - 1] != z))
+                rows[size++] = z;
+        }
+        return Arrays.copyOf(rows, size);
+    }
+
+    /**
+     * Sets the rows of detector which are read from images
+     * @param rows vertical positions of rows in the order they are put to the image,
+     *        should contain all rows of getRows()
+     */
+    public void setReadRows(int[] rows){
+        positions = new int[pixels.length];
+        if(pixels.length == 0)
+            return;
+        int[] lines = new int[pixels[pixels.length - 1]/width + 1]; //Line of image for each detector row
+        for(int j = 0; j < rows.length; j++){
+            if((rows[j] >= 0) && (rows[j] < lines.length))
+                lines[rows[j]] = j;
+        }
+        for(int i = 0; i < pixels.length; i++){
+            positions[i] = lines[pixels[i]/width]*width + pixels[i]%width;
+        }
+    }
+
+    /**
+     * Sets correction factors of pixels, intensities are divided by them
+     */
+    public void setCorrections(CorrectionMap corrections){
+        float[] factors = corrections.getInverseFactorsArray();
+        inverseFactors = new float[pixels.length];
+        for(int i = 0; i < pixels.length; i++){
+            inverseFactors[i] = factors[pixels[i]];
+        }
+    }
+
+    /**
+     * Fills the arrays with h- and k-coordinates of pixels at given azimuthal angle
+     * @param omega azimuthal angle of sample rotation with respect to 0 starting angle
+     * @param cutH array of length size() for h-coordinates
+     * @param cutK array of length size() for k-coordinates
+     */
+    public void getHK(double omega, double[] cutH, double[] cutK){
+        GeometryKernels.rotateHK(h, k, 0, cutH, cutK, pixels.length, omega, latticeRatio);
+    }
+
+    /**
+     * Takes intensities of pixels from the image of read rows
+     * @param lines pixels of image of read rows (see setReadRows())
+     * @param intensities array of length size() for intensities
+     */
+    public void getIntensities(float[] lines, double[] intensities){
+        for(int i = 0; i < pixels.length; i++){
+            intensities[i] = lines[positions[i]];
+        }
+        if(inverseFactors != null)
+            GeometryKernels.correct(intensities, inverseFactors, 0, pixels.length);
+    }
+}
@@ -0,0 +1,95 @@
+import java.util.Arrays;
+
+/**
+ *
+ * @author Mikhail Shipilin
+ * Inverted index of detector pixels by their l-coordinate. Range of l-values of
+ * the detector is divided into bins, pixels of every bin are stored together, so
+ * all pixels with l-values in a given interval are found by looking only at the
+ * bins overlapping the interval instead of the whole detector. l-coordinate
+ * doesn't depend on azimuthal angle, so the index is calculated once per geometry
+ * map (see GeometryMap.getLIndex()).
+ *
+ * Pixels of all bins are kept in one array (compressed sparse rows): pixels of
+ * bin b are pixels[binStarts[b]] ... pixels[binStarts[b + 1] - 1], each pixel is
+ * given by its offset z*width + x in the map.
+ */
+public class LIndex {
+    private final float[] l; // l-coordinates of pixels (array of geometry map)
+    private final double minL; // The lowest l-value of detector
+    private final double binSize; // Size of bin in reciprocal units
+    private final int[] binStarts; // Position of the first pixel of each bin, binStarts[bins] is the number of pixels
+    private final int[] pixels; // Offsets of pixels sorted by bins, in order of offsets inside the bin
+
+    /**
+     * Creates index of all pixels of the map
+     * @param l l-coordinates of pixels
+     * @param binsNumber number of bins
+     */
+    protected LIndex(float[] l, int binsNumber){
+        this.l = l;
+        double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+        for(float value : l){
+            if(Float.isNaN(value))
+                continue;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        if(min > max) //No defined l-values
+            min = max = 0;
+        minL = min;
+        binSize = Math.max((max - min)/binsNumber, Double.MIN_NORMAL);
+        binStarts = new int[binsNumber + 1];
+        //Counting sort of pixels by bins
+        for(int i = 0; i < l.length; i++){
+            if(!Float.isNaN(l[i]))
+                binStarts[getBin(l[i]) + 1]++;
+        }
+        for(int b = 0; b < binsNumber; b++){
+            binStarts[b + 1] += binStarts[b];
+        }
+        pixels = new int[binStarts[binsNumber]];
+        int[] positions = Arrays.copyOf(binStarts, binsNumber);
+        for(int i = 0; i < l.length; i++){
+            if(!Float.isNaN(l[i]))
+                pixels[positions[getBin(l[i])]++] = i;
+        }
+    }
+
+    private int getBin(double value){
+        int bin = (int)((value - minL)/binSize);
+        return Math.max(0, Math.min(binStarts.length - 2, bin));
+    }
+
+    /**
+     * Returns all pixels with l-coordinates in the interval, only pixels of boundary
+     * bins are compared with the interval
+     * @param fromL lower boundary (inclusive)
+     * @param toL upper boundary (exclusive)
+     * @return offsets z*width + x of pixels in ascending order
+     */
+    public int[] getPixels(double fromL, double toL){
+        if(toL <= fromL)
+            return new int[0];
+        int firstBin = getBin(fromL), lastBin = getBin(toL);
+        int[] result = new int[binStarts[lastBin + 1] - binStarts[firstBin]];
+        int size = 0;
+        for(int b = firstBin; b <= lastBin; b++){
+            boolean inside = (b > firstBin) && (b < lastBin);
+            for(int i = binStarts[b]; i < binStarts[b + 1]; i++){
+                if(inside || ((l[pixels[i]] >= fromL) && (l[pixels[i]] < toL)))
+                    result[size++] = pixels[i];
+            }
+        }
+        result = Arrays.copyOf(result, size);
+        Arrays.sort(result); //Pixels of one detector row are read together
+        return result;
+    }
+
+    /**
+     * @return size of index in bytes
+     */
+    public long getDataSize(){
+        return 4L*(binStarts.length + pixels.length);
+    }
+}
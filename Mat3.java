@@ -0,0 +1,128 @@
+/**
+ *
+ * @author Mikhail Shipilin
+ * Matrix 3x3 for geometry calculations. Objects are immutable and store elements
+ * in final fields, so composition of several matrices doesn't create arrays and
+ * temporary matrices can be eliminated by JIT (escape analysis). Determinant and
+ * inverse are calculated analytically. 
+ */
+public final class Mat3 {
+    public final double m00, m01, m02,
+                        m10, m11, m12,
+                        m20, m21, m22;
+
+    public Mat3(double m00, double m01, double m02,
+                double m10, double m11, double m12,
+                double m20, double m21, double m22){
+        this.m00 = m00; this.m01 = m01; this.m02 = m02;
+        this.m10 = m10; this.m11 = m11; this.m12 = m12;
+        this.m20 = m20; this.m21 = m21; this.m22 = m22;
+    }
+
+    public static Mat3 identity(){
+        return diagonal(1, 1, 1);
+    }
+
+    public static Mat3 diagonal(double d0, double d1, double d2){
+        return new Mat3(d0, 0, 0,
+                        0, d1, 0,
+                        0, 0, d2);
+    }
+
+    /**
+     * Rotation around x-axis (e.g. incident angle)
+     * @param angle angle in degrees
+     */
+    public static Mat3 rotationX(double angle){
+        double cos = Math.cos(angle*Math.PI/180), sin = Math.sin(angle*Math.PI/180);
+        return new Mat3(1, 0, 0,
+                        0, cos, -1*sin,
+                        0, sin, cos);
+    }
+
+    /**
+     * Rotation around z-axis (e.g. azimuthal angle)
+     * @param angle angle in degrees
+     */
+    public static Mat3 rotationZ(double angle){
+        double cos = Math.cos(angle*Math.PI/180), sin = Math.sin(angle*Math.PI/180);
+        return new Mat3(cos, -1*sin, 0,
+                        sin, cos, 0,
+                        0, 0, 1);
+    }
+
+    public double getValueAt(int i, int j){
+        switch(3*i + j){
+            case 0: return m00;
+            case 1: return m01;
+            case 2: return m02;
+            case 3: return m10;
+            case 4: return m11;
+            case 5: return m12;
+            case 6: return m20;
+            case 7: return m21;
+            case 8: return m22;
+            default: throw new IndexOutOfBoundsException("Index (" + i + ";" + j + ") is outside of matrix 3x3");
+        }
+    }
+
+    /**
+     * @return this*m
+     */
+    public Mat3 multiply(Mat3 m){
+        return new Mat3(m00*m.m00 + m01*m.m10 + m02*m.m20, m00*m.m01 + m01*m.m11 + m02*m.m21, m00*m.m02 + m01*m.m12 + m02*m.m22,
+                        m10*m.m00 + m11*m.m10 + m12*m.m20, m10*m.m01 + m11*m.m11 + m12*m.m21, m10*m.m02 + m11*m.m12 + m12*m.m22,
+                        m20*m.m00 + m21*m.m10 + m22*m.m20, m20*m.m01 + m21*m.m11 + m22*m.m21, m20*m.m02 + m21*m.m12 + m22*m.m22);
+    }
+
+    public Mat3 multiplyByConstant(double constant){
+        return new Mat3(m00*constant, m01*constant, m02*constant,
+                        m10*constant, m11*constant, m12*constant,
+                        m20*constant, m21*constant, m22*constant);
+    }
+
+    public Mat3 transpose(){
+        return new Mat3(m00, m10, m20,
+                        m01, m11, m21,
+                        m02, m12, m22);
+    }
+
+    public double determinant(){
+        return m00*(m11*m22 - m12*m21) - m01*(m10*m22 - m12*m20) + m02*(m10*m21 - m11*m20);
+    }
+
+    /**
+     * Calculates inverse matrix as adjugate matrix divided by determinant
+     */
+    public Mat3 inverse(){
+        double c00 = m11*m22 - m12*m21, c01 = m12*m20 - m10*m22, c02 = m10*m21 - m11*m20;
+        double det = m00*c00 + m01*c01 + m02*c02;
+        if(det == 0)
+            throw new ArithmeticException("Matrix is singular.");
+        double inv = 1/det;
+        return new Mat3(c00*inv, (m02*m21 - m01*m22)*inv, (m01*m12 - m02*m11)*inv,
+                        c01*inv, (m00*m22 - m02*m20)*inv, (m02*m10 - m00*m12)*inv,
+                        c02*inv, (m01*m20 - m00*m21)*inv, (m00*m11 - m01*m10)*inv);
+    }
+
+    /**
+     * @return this*v
+     */
+    public Vec3 transform(Vec3 v){
+        return new Vec3(m00*v.x + m01*v.y + m02*v.z,
+                        m10*v.x + m11*v.y + m12*v.z,
+                        m20*v.x + m21*v.y + m22*v.z);
+    }
+
+    /**
+     * Multiplies matrix by vector (x,y,z) and writes the result to the array
+     * without creating of new objects
+     * @param result array for the resulting vector
+     * @param offset index of the first component in result
+     */
+    public void transform(double x, double y, double z, double[] result, int offset){
+        result[offset] = m00*x + m01*y + m02*z;
+        result[offset + 1] = m10*x + m11*y + m12*z;
+        result[offset + 2] = m20*x + m21*y + m22*z;
+    }
+}
@@ -1,6 +1,8 @@
 /**
  *
  * @author Mikhail Shipilin
+ * Generic matrix of any size. Geometry calculations use Mat3 and Vec3 instead,
+ * which are much faster for 3x3 matrices.
  */
 public class Matrix {
 
@@ -0,0 +1,81 @@
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.plugin.PlugIn;
+import ij.process.ImageProcessor;
+import java.io.File;
+import javax.swing.JFileChooser;
+import javax.swing.UIManager;
+import javax.swing.filechooser.FileNameExtensionFilter;
+
+/**
+ *
+ * @author Mikhail Shipilin
+ * Merges partial results of in-plane projections extraction (see
+ * PartialProjectionFile), e.g. parts of a long scan processed on different
+ * computers, into the final projections stack.
+ */
+public class Merge_Partial_Projections implements PlugIn{
+
+    @Override
+    public void run(String arg) {
+        //Bring window style in accordance with operating system
+        try {
+            UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
+        }
+        catch (Exception e) {
+        }
+        File[] chosenFiles; // Array for file paths
+        try{
+            JFileChooser fileChooser = new JFileChooser();
+            fileChooser.setMultiSelectionEnabled(true);
+            fileChooser.setFileFilter(new FileNameExtensionFilter("Partial projections (*" + PartialProjectionFile.EXTENSION + ")",
+                                                                  PartialProjectionFile.EXTENSION.substring(1)));
+            int returnVal = fileChooser.showOpenDialog(null);
+            if(returnVal==JFileChooser.APPROVE_OPTION)
+                chosenFiles = fileChooser.getSelectedFiles();
+            else
+                return;
+        }
+        catch (Exception e){
+            IJ.error("Error", "Can't open one ore more files\nError: " + e.getMessage());
+            return;
+        }
+        //If user didn't choose any files
+        if (chosenFiles.length == 0){
+            IJ.noImage();
+            return;
+        }
+
+        PartialProjectionFile result = null;
+        try{
+            //Files are read one by one, so only two partial results are in memory at once
+            for(int i = 0; i < chosenFiles.length; i++){
+                IJ.showStatus("Merging " + chosenFiles[i].getName());
+                IJ.showProgress(i, chosenFiles.length);
+                PartialProjectionFile partial = PartialProjectionFile.read(chosenFiles[i]);
+                if(result == null)
+                    result = partial;
+                else
+                    result.merge(partial);
+            }
+        }
+        catch(Exception e){
+            IJ.showProgress(1.0);
+            IJ.error("Partial results can't be merged. " + e.getMessage());
+            return;
+        }
+        IJ.showProgress(1.0);
+
+        HKprojection[] projections = result.getProjections();
+        ImageStack stack = null;
+        for(HKprojection projection : projections){
+            ImageProcessor ip = projection.getProjectionProcessor();
+            if(stack == null)
+                stack = new ImageStack(ip.getWidth(), ip.getHeight());
+            stack.addSlice(String.format("L = %.2f", projection.getLValue()), ip);
+        }
+        IJ.log("Merged " + chosenFiles.length + " partial results into " + projections.length + " in-plane projection(s)");
+        (new ImagePlus("Merged in-plane projections", stack)).show();
+    }
+}
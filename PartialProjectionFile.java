@@ -0,0 +1,122 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ *
+ * @author Mikhail Shipilin
+ * Partial result of in-plane projections extraction, calculated from a part of
+ * the scan (e.g. a range of azimuthal angles processed on another computer).
+ * Partial results of the same projections are merged point by point by
+ * HKprojection.mergeProjection(), which doesn't depend on the order of merging.
+ *
+ * Each resulting projection is stored as the set of slices which are integrated
+ * into it (one slice if integration is off). Slices are merged before integration,
+ * so merged result is the same as if all images were processed at once.
+ *
+ * File format (big-endian): magic number, version, number of projections, then
+ * for each projection its L-value, number of slices and slices written by
+ * HKprojection.write(). Only allocated tiles of projections are written.
+ */
+public class PartialProjectionFile {
+    public static final String EXTENSION = ".hkp";
+    private static final int MAGIC = 0x484B5050; // "HKPP"
+    private static final int VERSION = 1;
+
+    private final double[] lValues; // L-values of resulting projections
+    private final HKprojection[][] slices; // Slices integrated into each projection
+
+    /**
+     * @param lValues L-values of resulting projections
+     * @param slices slices integrated into each projection
+     */
+    public PartialProjectionFile(double[] lValues, HKprojection[][] slices){
+        this.lValues = lValues;
+        this.slices = slices;
+    }
+
+    public int getProjectionsNumber(){
+        return lValues.length;
+    }
+
+    public void write(File file) throws IOException{
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        try{
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(lValues.length);
+            for(int i = 0; i < lValues.length; i++){
+                out.writeDouble(lValues[i]);
+                out.writeInt(slices[i].length);
+                for(HKprojection slice : slices[i]){
+                    slice.write(out);
+                }
+            }
+        }
+        finally{
+            out.close();
+        }
+    }
+
+    public static PartialProjectionFile read(File file) throws IOException{
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        try{
+            if(in.readInt() != MAGIC)
+                throw new IOException(file.getName() + " is not a file of partial projections.");
+            int version = in.readInt();
+            if(version != VERSION)
+                throw new IOException("Unsupported version " + version + " of partial projections file " + file.getName());
+            int projectionsNumber = in.readInt();
+            double[] lValues = new double[projectionsNumber];
+            HKprojection[][] slices = new HKprojection[projectionsNumber][];
+            for(int i = 0; i < projectionsNumber; i++){
+                lValues[i] = in.readDouble();
+                slices[i] = new HKprojection[in.readInt()];
+                for(int j = 0; j < slices[i].length; j++){
+                    slices[i][j] = HKprojection.read(in);
+                }
+            }
+            return new PartialProjectionFile(lValues, slices);
+        }
+        finally{
+            in.close();
+        }
+    }
+
+    /**
+     * Merges other partial result of the same projections into this one
+     * @param other partial result calculated with the same settings
+     */
+    public void merge(PartialProjectionFile other) throws IOException{
+        if(other.lValues.length != lValues.length)
+            throw new IOException("Partial results contain different number of projections.");
+        for(int i = 0; i < lValues.length; i++){
+            if(other.slices[i].length != slices[i].length)
+                throw new IOException("Partial results contain different slices of projection " + (i + 1));
+            for(int j = 0; j < slices[i].length; j++){
+                if(!slices[i][j].isCompatible(other.slices[i][j]))
+                    throw new IOException("Partial results of projection " + (i + 1) + " have different limits, resolution or aggregation mode.");
+                slices[i][j].mergeProjection(other.slices[i][j]);
+            }
+        }
+    }
+
+    /**
+     * @return resulting projections, slices of each projection are integrated
+     */
+    public HKprojection[] getProjections(){
+        HKprojection[] projections = new HKprojection[lValues.length];
+        for(int i = 0; i < lValues.length; i++){
+            if(slices[i].length == 1)
+                projections[i] = slices[i][0];
+            else
+                projections[i] = HKprojection.sumUpProjections(slices[i], lValues[i]);
+        }
+        return projections;
+    }
+}
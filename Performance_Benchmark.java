@@ -0,0 +1,495 @@
+import ij.IJ;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+import ij.plugin.PlugIn;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.swing.JFileChooser;
+import javax.swing.UIManager;
+
+/**
+ *
+ * @author Mikhail Shipilin
+ * Measures the speed of the main calculation kernels of the plugin for the
+ * experiment described by preferences file. Results are written to the log
+ * window as number of processed pixels per second.
+ */
+public class Performance_Benchmark implements PlugIn{
+
+    private static final String[] BENCHMARKS = {"Geometry kernels", "Matrix vs Mat3", "Concurrent accumulation", "HK binning", "Polar binning"};
+    private int repetitions = 5; // Number of timed runs of every kernel, the best one is reported
+    private double checksum = 0; // Sum of kernel results, prevents JIT from skipping the calculations
+
+    /**
+     * Runs all benchmarks without GUI
+     * @param args path to preferences file
+     */
+    public static void main(final String... args) throws Exception{
+        ExperimentHandler experiment = new ExperimentHandler(new File(args[0]));
+        Performance_Benchmark benchmark = new Performance_Benchmark();
+        for(int i = 0; i < BENCHMARKS.length; i++){
+            benchmark.runBenchmark(i, experiment);
+        }
+    }
+
+    @Override
+    public void run(String arg) {
+        //Bring window style in accordance with operating system
+        try {
+            UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
+        }
+        catch (Exception e) {
+        }
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setDialogTitle("Choose preferences file");
+        if(fileChooser.showOpenDialog(null) != JFileChooser.APPROVE_OPTION)
+            return;
+        ExperimentHandler experiment;
+        try{
+            experiment = new ExperimentHandler(fileChooser.getSelectedFile());
+        }
+        catch(Exception e){
+            IJ.error("Error", "Can't open file\nError: " + e.getMessage());
+            return;
+        }
+
+        GenericDialog gd = new GenericDialog("Benchmark options");
+        gd.addChoice("Benchmark", BENCHMARKS, BENCHMARKS[0]);
+        gd.addNumericField("Repetitions", repetitions, 0);
+        gd.showDialog();
+        if (gd.wasCanceled())
+            return;
+        int benchmarkNumber = gd.getNextChoiceIndex();
+        repetitions = (int)gd.getNextNumber();
+        try{
+            runBenchmark(benchmarkNumber, experiment);
+        }
+        catch(Exception e){
+            IJ.error("Error", "Benchmark failed\nError: " + e.getMessage());
+        }
+    }
+
+    private void runBenchmark(int benchmarkNumber, ExperimentHandler experiment) throws Exception{
+        IJ.log("*** " + BENCHMARKS[benchmarkNumber] + " ***");
+        switch(benchmarkNumber){
+            case 0:/*Geometry kernels*/
+                benchmarkGeometry(experiment);
+                break;
+            case 1:/*Matrix vs Mat3*/
+                benchmarkMatrices();
+                break;
+            case 2:/*Concurrent accumulation*/
+                benchmarkAccumulation();
+                break;
+            case 3:/*HK binning*/
+                benchmarkBinning(experiment);
+                break;
+            case 4:/*Polar binning*/
+                benchmarkPolarBinning(experiment);
+                break;
+            default:
+                break;
+        }
+        IJ.log("(checksum " + checksum + ")");
+    }
+
+    /**
+     * Compares per pixel transformations with the row kernels working on the whole detector
+     */
+    private void benchmarkGeometry(final ExperimentHandler experiment) throws Exception{
+        final int width = experiment.getDetectorSizeInPixelsX();
+        final int height = experiment.getDetectorSizeInPixelsZ();
+        final int z = experiment.getDetectorCenterZ()/2;
+        final int referenceRows = 4; // Transformation with matrix inversion is slow, so only several rows are used
+        final double[] rowH = new double[width], rowK = new double[width], rowL = new double[width];
+        final double[] pixels = new double[width];
+        final GeometryMap map = experiment.getGeometryMap();
+        final CorrectionMap corrections = experiment.getCorrectionMap();
+
+        measure("labToHKL, Mat3 (per pixel)", referenceRows*width, new Kernel(){
+            double run() throws Exception{
+                double sum = 0;
+                for(int j = 0; j < referenceRows; j++){
+                    for(int x = 0; x < width; x++){
+                        double[] hkl = experiment.labToHKL(x, z + j, 10);
+                        sum += hkl[0] + hkl[1] + hkl[2];
+                    }
+                }
+                return sum;
+            }
+        });
+        measure("labToHKL, closed form (per pixel)", height*width, new Kernel(){
+            double run(){
+                double sum = 0;
+                double[] hkl = new double[3];
+                for(int j = 0; j < height; j++){
+                    for(int x = 0; x < width; x++){
+                        experiment.labToHKL(x, j, 10, hkl);
+                        sum += hkl[0] + hkl[1] + hkl[2];
+                    }
+                }
+                return sum;
+            }
+        });
+        measure("rowToHKL (row kernel)", height*width, new Kernel(){
+            double run(){
+                double sum = 0;
+                for(int j = 0; j < height; j++){
+                    experiment.rowToHKL(j, 0, width, 10, rowH, rowK, rowL);
+                    sum += rowH[j % width] + rowK[j % width] + rowL[j % width];
+                }
+                return sum;
+            }
+        });
+        measure("Geometry map rotation (row kernel)", height*width, new Kernel(){
+            double run(){
+                double sum = 0;
+                for(int j = 0; j < height; j++){
+                    map.getRowHK(j, 10, rowH, rowK);
+                    sum += rowH[j % width];
+                }
+                return sum;
+            }
+        });
+        measure("getTotalCorrectionFactor (per pixel)", referenceRows*width, new Kernel(){
+            double run(){
+                double sum = 0;
+                for(int j = 0; j < referenceRows; j++){
+                    for(int x = 0; x < width; x++){
+                        sum += experiment.getTotalCorrectionFactor(x, z + j);
+                    }
+                }
+                return sum;
+            }
+        });
+        measure("Correction map (row kernel)", height*width, new Kernel(){
+            double run(){
+                double sum = 0;
+                for(int j = 0; j < height; j++){
+                    Arrays.fill(pixels, 1);
+                    corrections.correctRow(j, pixels);
+                    sum += pixels[j % width];
+                }
+                return sum;
+            }
+        });
+    }
+
+    /**
+     * Compares generic Matrix with fixed size Mat3 on the typical geometry
+     * operation: composition of sMu*sOmega*uAngle*b, its inversion and
+     * multiplication by the momentum transfer vector. One operation is counted
+     * as one pixel
+     */
+    private void benchmarkMatrices() throws Exception{
+        final int operations = 100000;
+        final double mu = 0.04, shift = 12.5;
+        final double[] lattice = {2.7, 3.1, 6.5};
+
+        measure("Matrix (compose, inverse, multiply)", operations, new Kernel(){
+            double run() throws Exception{
+                double sum = 0;
+                Matrix q = new Matrix(new double[][] {{0.1}, {-0.01}, {0.2}});
+                for(int i = 0; i < operations; i++){
+                    Matrix transformation = Matrix.multiply(rotationX(mu), Matrix.multiply(rotationZ(0.01*i),
+                                            Matrix.multiply(rotationZ(shift), diagonal(lattice))));
+                    Matrix hkl = Matrix.leftDivide(transformation, q);
+                    sum += hkl.getValueAt(0, 0) + hkl.getValueAt(1, 0) + hkl.getValueAt(2, 0);
+                }
+                return sum;
+            }
+        });
+        measure("Mat3 (compose, inverse, multiply)", operations, new Kernel(){
+            double run(){
+                double sum = 0;
+                Vec3 q = new Vec3(0.1, -0.01, 0.2);
+                Mat3 b = Mat3.diagonal(2*Math.PI/lattice[0], 2*Math.PI/lattice[1], 2*Math.PI/lattice[2]);
+                for(int i = 0; i < operations; i++){
+                    Mat3 transformation = Mat3.rotationX(mu).multiply(Mat3.rotationZ(0.01*i))
+                                              .multiply(Mat3.rotationZ(shift)).multiply(b);
+                    Vec3 hkl = transformation.inverse().transform(q);
+                    sum += hkl.x + hkl.y + hkl.z;
+                }
+                return sum;
+            }
+        });
+    }
+
+    /**
+     * Compares two ways of binning pixels into one projection by several threads:
+     * private copy of projection for every thread merged at the end, and grid
+     * shared by all threads without locks (with one stripe and with a stripe per
+     * thread). Time of allocation and merging is included. Pixels are uniformly
+     * distributed over the projection.
+     */
+    private void benchmarkAccumulation() throws Exception{
+        final int threadsNumber = Math.max(2, Prefs.getThreads());
+        final int pixelsPerThread = 1 << 19;
+        final double[] limits = {-4, 4, -4, 4, 0, 2};
+        final double[][] h = new double[threadsNumber][pixelsPerThread];
+        final double[][] k = new double[threadsNumber][pixelsPerThread];
+        final double[][] intensity = new double[threadsNumber][pixelsPerThread];
+        Random random = new Random(1);
+        for(int t = 0; t < threadsNumber; t++){
+            for(int i = 0; i < pixelsPerThread; i++){
+                h[t][i] = limits[0] + (limits[1] - limits[0])*random.nextDouble();
+                k[t][i] = limits[2] + (limits[3] - limits[2])*random.nextDouble();
+                intensity[t][i] = 1 + random.nextInt(1000);
+            }
+        }
+        long pixelsNumber = (long)threadsNumber*pixelsPerThread;
+        IJ.log(threadsNumber + " threads");
+
+        HKprojection.Aggregation[] modes = {HKprojection.Aggregation.MAX, HKprojection.Aggregation.SUM};
+        for(HKprojection.Aggregation mode : modes){
+            final HKprojection template = new HKprojection(limits, 1, 300, mode);
+            IJ.log(mode.getLabel() + ": private copies up to " + ((threadsNumber*template.getDataSize()) >> 20) +
+                   " MB, shared grid " + ((template.getDataSize() + template.createConcurrentGrid(1).getDataSize()) >> 20) + " MB");
+            measure("Private copies and merge, " + mode.getLabel(), pixelsNumber, new Kernel(){
+                double run() throws Exception{
+                    final HKprojection[] copies = new HKprojection[threadsNumber];
+                    for(int t = 0; t < threadsNumber; t++){
+                        copies[t] = template.createEmptyCopy();
+                    }
+                    runThreads(threadsNumber, new Worker(){
+                        void run(int t){
+                            copies[t].addDataSet(h[t], k[t], intensity[t]);
+                        }
+                    });
+                    for(int t = 1; t < threadsNumber; t++){
+                        copies[0].mergeProjection(copies[t]);
+                    }
+                    return copies[0].calculateMeanIntensity();
+                }
+            });
+            int[] stripesNumbers = {1, threadsNumber};
+            for(final int stripes : stripesNumbers){
+                measure("Shared grid, " + stripes + " stripe(s), " + mode.getLabel(), pixelsNumber, new Kernel(){
+                    double run() throws Exception{
+                        final HKprojection result = template.createEmptyCopy();
+                        final ConcurrentHKGrid grid = result.createConcurrentGrid(stripes);
+                        runThreads(threadsNumber, new Worker(){
+                            void run(int t){
+                                result.addDataSet(h[t], k[t], intensity[t], grid, t);
+                            }
+                        });
+                        result.mergeGrid(grid);
+                        return result.calculateMeanIntensity();
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Compares binning of detector rows into projection in detector order with
+     * binning bucketed by tiles of projection. Rows are taken from the whole
+     * detector at one azimuthal angle, projection covers full rotation.
+     */
+    private void benchmarkBinning(ExperimentHandler experiment) throws Exception{
+        final GeometryMap map = experiment.getGeometryMap();
+        final int width = map.getWidth();
+        final int rowsNumber = Math.min(256, map.getHeight());
+        final double[][] h = new double[rowsNumber][width], k = new double[rowsNumber][width];
+        final double[][] intensity = new double[rowsNumber][width];
+        double ratio = experiment.getInPlaneLatticeRatio();
+        double maxRadius = 0;
+        Random random = new Random(1);
+        for(int j = 0; j < rowsNumber; j++){
+            map.getRowHK((int)((long)j*map.getHeight()/rowsNumber), 10, h[j], k[j]);
+            for(int x = 0; x < width; x++){
+                maxRadius = Math.max(maxRadius, Math.sqrt(h[j][x]*h[j][x] + ratio*ratio*k[j][x]*k[j][x]));
+                intensity[j][x] = 1 + random.nextInt(1000);
+            }
+        }
+        double[] limits = {-maxRadius, maxRadius, -maxRadius/ratio, maxRadius/ratio, 0, 1};
+        int[] resolutions = {300, 1000, 3000};
+        for(int resolution : resolutions){
+            final HKprojection template = new HKprojection(limits, 1, resolution, HKprojection.Aggregation.MAX);
+            IJ.log("Resolution " + resolution + ", projection up to " + (template.getDataSize() >> 20) + " MB");
+            measure("Detector order, resolution " + resolution, (long)rowsNumber*width, new Kernel(){
+                double run(){
+                    HKprojection projection = template.createEmptyCopy();
+                    for(int j = 0; j < rowsNumber; j++){
+                        projection.addDataSet(h[j], k[j], intensity[j]);
+                    }
+                    return projection.getAllocatedSize();
+                }
+            });
+            measure("Bucketed by tiles, resolution " + resolution, (long)rowsNumber*width, new Kernel(){
+                double run(){
+                    HKprojection projection = template.createEmptyCopy();
+                    for(int j = 0; j < rowsNumber; j++){
+                        projection.addDataSetBucketed(h[j], k[j], intensity[j]);
+                    }
+                    return projection.getAllocatedSize();
+                }
+            });
+        }
+    }
+
+    /**
+     * Compares binning of images into projection, where coordinates of detector rows
+     * are rotated by the angle of every image, with binning into polar grid, where
+     * the angle of image only shifts the precalculated bins, with and without splitting
+     * of pixels. Resampling of polar grid into projection is done once per projection
+     * and is measured separately.
+     */
+    private void benchmarkPolarBinning(ExperimentHandler experiment) throws Exception{
+        final GeometryMap map = experiment.getGeometryMap();
+        final int width = map.getWidth();
+        final int rowsNumber = 16;
+        final int imagesNumber = 360;
+        final double azimuthalStep = 1;
+        final int[] rows = new int[rowsNumber];
+        final double[][] intensity = new double[rowsNumber][width];
+        final double ratio = experiment.getInPlaneLatticeRatio();
+        double[] h = new double[width], k = new double[width];
+        double maxRadius = 0;
+        Random random = new Random(1);
+        for(int j = 0; j < rowsNumber; j++){
+            rows[j] = (int)((long)j*map.getHeight()/rowsNumber);
+            map.getRowHK(rows[j], 0, h, k);
+            for(int x = 0; x < width; x++){
+                maxRadius = Math.max(maxRadius, Math.sqrt(h[x]*h[x] + ratio*ratio*k[x]*k[x]));
+                intensity[j][x] = 1 + random.nextInt(1000);
+            }
+        }
+        double[] limits = {-maxRadius, maxRadius, -maxRadius/ratio, maxRadius/ratio, 0, 1};
+        final HKprojection template = new HKprojection(limits, 1, 300, HKprojection.Aggregation.MAX);
+        final PolarHKGrid gridTemplate = template.createPolarGrid(azimuthalStep, ratio);
+        final int[][] radialOffsets = new int[rowsNumber][width], angleIndices = new int[rowsNumber][width];
+        for(int j = 0; j < rowsNumber; j++){
+            map.getRowHK(rows[j], 0, h, k);
+            gridTemplate.getRowBins(h, k, radialOffsets[j], angleIndices[j]);
+        }
+        IJ.log(imagesNumber + " images, projection up to " + (template.getDataSize() >> 20) + " MB, polar grid " +
+               (gridTemplate.getDataSize() >> 20) + " MB");
+        measure("Rotated coordinates", (long)imagesNumber*rowsNumber*width, new Kernel(){
+            double run(){
+                HKprojection projection = template.createEmptyCopy();
+                double[] rowH = new double[width], rowK = new double[width];
+                for(int i = 0; i < imagesNumber; i++){
+                    for(int j = 0; j < rowsNumber; j++){
+                        map.getRowHK(rows[j], i*azimuthalStep, rowH, rowK);
+                        projection.addDataSet(rowH, rowK, intensity[j]);
+                    }
+                }
+                return projection.getAllocatedSize();
+            }
+        });
+        final PolarHKGrid grid = gridTemplate.createEmptyCopy();
+        measure("Polar grid", (long)imagesNumber*rowsNumber*width, new Kernel(){
+            double run(){
+                for(int i = 0; i < imagesNumber; i++){
+                    for(int j = 0; j < rowsNumber; j++){
+                        grid.addRow(radialOffsets[j], angleIndices[j], intensity[j], i);
+                    }
+                }
+                return grid.getIntensity(0);
+            }
+        });
+        final PolarHKGrid.SplitRow[] splitRows = new PolarHKGrid.SplitRow[rowsNumber];
+        double[][] rowsH = new double[3][width], rowsK = new double[3][width];
+        for(int j = 0; j < rowsNumber; j++){
+            for(int z = 0; z < 3; z++){
+                map.getRowHK(Math.max(0, Math.min(map.getHeight() - 1, rows[j] - 1 + z)), 0, rowsH[z], rowsK[z]);
+            }
+            splitRows[j] = gridTemplate.getRowSplitting(rowsH, rowsK);
+        }
+        IJ.log("Split pixels cover " + String.format("%.1f", splitRows[0].getBinsPerPixel()) + " bins on average");
+        measure("Polar grid, split pixels", (long)imagesNumber*rowsNumber*width, new Kernel(){
+            double run(){
+                for(int i = 0; i < imagesNumber; i++){
+                    for(int j = 0; j < rowsNumber; j++){
+                        grid.addRow(splitRows[j], intensity[j], i);
+                    }
+                }
+                return grid.getIntensity(0);
+            }
+        });
+        measure("Resampling of polar grid (per pixel of projection)", template.getDataSize()/4, new Kernel(){
+            double run(){
+                HKprojection projection = template.createEmptyCopy();
+                projection.mergePolarGrid(grid, false);
+                return projection.getAllocatedSize();
+            }
+        });
+    }
+
+    /**
+     * Runs the worker in the specified number of threads and waits for all of them
+     */
+    private static void runThreads(int threadsNumber, final Worker worker) throws Exception{
+        ExecutorService pool = Executors.newFixedThreadPool(threadsNumber);
+        try{
+            List<Future<Object>> futures = new ArrayList<Future<Object>>();
+            for(int t = 0; t < threadsNumber; t++){
+                final int thread = t;
+                futures.add(pool.submit(new Callable<Object>(){
+                    @Override
+                    public Object call() throws Exception{
+                        worker.run(thread);
+                        return null;
+                    }
+                }));
+            }
+            for(Future<Object> future : futures){
+                future.get();
+            }
+        }
+        finally{
+            pool.shutdown();
+        }
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Matrix builders for benchmarkMatrices()">
+    private static Matrix rotationX(double angle){
+        double cos = Math.cos(angle*Math.PI/180), sin = Math.sin(angle*Math.PI/180);
+        return new Matrix(new double[][] {{1, 0, 0}, {0, cos, -1*sin}, {0, sin, cos}});
+    }
+
+    private static Matrix rotationZ(double angle){
+        double cos = Math.cos(angle*Math.PI/180), sin = Math.sin(angle*Math.PI/180);
+        return new Matrix(new double[][] {{cos, -1*sin, 0}, {sin, cos, 0}, {0, 0, 1}});
+    }
+
+    private static Matrix diagonal(double[] lattice){
+        return new Matrix(new double[][] {{2*Math.PI/lattice[0], 0, 0}, {0, 2*Math.PI/lattice[1], 0}, {0, 0, 2*Math.PI/lattice[2]}});
+    }
+    // </editor-fold>
+
+    /**
+     * Runs the kernel once to warm up JIT compiler and then the specified number of
+     * times. The best time is reported.
+     * @param name name of kernel
+     * @param pixelsNumber number of pixels processed by one run of kernel
+     * @param kernel kernel to be measured
+     */
+    private void measure(String name, long pixelsNumber, Kernel kernel) throws Exception{
+        checksum += kernel.run();
+        long bestTime = Long.MAX_VALUE;
+        for(int i = 0; i < repetitions; i++){
+            long start = System.nanoTime();
+            checksum += kernel.run();
+            bestTime = Math.min(bestTime, System.nanoTime() - start);
+        }
+        double pixelsPerSecond = pixelsNumber/(bestTime*1e-9);
+        IJ.log(name + ": " + String.format("%.3e", pixelsPerSecond) + " pixels/s");
+    }
+
+    private static abstract class Kernel{
+        abstract double run() throws Exception;
+    }
+
+    private static abstract class Worker{
+        abstract void run(int thread);
+    }
+}
@@ -0,0 +1,529 @@
+import java.util.Arrays;
+
+/**
+ *
+ * @author Mikhail Shipilin
+ * Grid of in-plane points in polar coordinates (radius, angle) in the orthogonal
+ * reciprocal basis (h, a1/a2*k), where rotation of the sample around the surface
+ * normal only shifts the angle. Radius and angle bins of detector pixels are
+ * calculated once per row (see getRowBins()), every image is added with the
+ * angle shifted by an integer number of bins, so binning of an image needs
+ * neither rotation of coordinates nor rounding. The grid is resampled into
+ * HKprojection once at the end (see HKprojection.mergePolarGrid()), bins are not
+ * larger than points of projection.
+ *
+ * Angular step is a fraction of the azimuthal step, so that the arc of one bin at
+ * the largest radius is not longer than the radial step and the full circle
+ * contains an integer number of bins. Bins of the first ring (closer to the origin
+ * than half of the radial step) all belong to the origin.
+ *
+ * Only the bins of the ring sector around the points of projection are stored, so the
+ * grid of a small H/K window far from the origin is not a full circle. Angles of images
+ * are shifted over the full circle, pixels shifted out of the sector are skipped.
+ *
+ * Pixels can also be split over all bins covered by their footprints during the
+ * image (see getRowSplitting()). The weights of bins are calculated once per detector row
+ * as a sparse matrix, so adding an image is a sparse matrix-vector product with
+ * the angle shift of the image.
+ */
+public class PolarHKGrid {
+    private static final int MAX_SUBDIVISION = 64; // Search limit of extra bins per azimuthal step,
+                                                   // which give integer number of bins in full circle
+    public static final int MAX_SPLIT_BINS = 256; // Pixels covering more bins (next to the origin) are not split
+
+    private final int angles; // Number of angular bins in the full circle
+    private final int innerRadius, radii; // The first radial bin of the sector and number of radial bins
+    private final int firstAngle, sectorAngles; // The first angular bin of the sector and number of angular bins
+    private final double radialStep; // Size of radial bin in reciprocal units
+    private final double angularStep; // Size of angular bin in degrees
+    private final int shiftPerImage; // Number of angular bins in one azimuthal step (negative for negative step)
+    private final double latticeRatio; // a1/a2 ratio of in-plane lattice parameters
+    private final HKprojection.Aggregation aggregation;
+    private final float[] intensities; // Maximal or summed intensities at index (radius - innerRadius)*sectorAngles + angle - firstAngle
+                                       // (not used for COUNT)
+    private final float[] weights; // Numbers of pixels, split pixels are counted by fractions (for MEAN and COUNT only)
+
+    /**
+     * Creates grid filled by zeros
+     * @param maxRadius the largest radius of points in reciprocal units
+     * @param radialStep size of radial bin in reciprocal units
+     * @param azimuthalStep angular step between images in degrees
+     * @param latticeRatio a1/a2 ratio of in-plane lattice parameters
+     * @param aggregation way of combining pixels in one point
+     */
+    public PolarHKGrid(double maxRadius, double radialStep, double azimuthalStep, double latticeRatio, HKprojection.Aggregation aggregation){
+        this(0, maxRadius, 0, 360, radialStep, azimuthalStep, latticeRatio, aggregation);
+    }
+
+    /**
+     * Creates grid of the ring sector filled by zeros
+     * @param minRadius the smallest radius of points in reciprocal units
+     * @param maxRadius the largest radius of points in reciprocal units
+     * @param startAngle start angle of the sector in degrees in the orthogonal basis
+     * @param angularWidth width of the sector in degrees (360 or more for the full circle)
+     * @param radialStep size of radial bin in reciprocal units
+     * @param azimuthalStep angular step between images in degrees
+     * @param latticeRatio a1/a2 ratio of in-plane lattice parameters
+     * @param aggregation way of combining pixels in one point
+     */
+    public PolarHKGrid(double minRadius, double maxRadius, double startAngle, double angularWidth, double radialStep,
+                       double azimuthalStep, double latticeRatio, HKprojection.Aggregation aggregation){
+        int binsPerImage = getBinsPerImage(azimuthalStep, maxRadius/radialStep);
+        if(binsPerImage == 0)
+            throw new IllegalArgumentException("Full circle doesn't contain integer number of azimuthal steps " + azimuthalStep);
+        this.radialStep = radialStep;
+        this.latticeRatio = latticeRatio;
+        this.aggregation = aggregation;
+        angularStep = Math.abs(azimuthalStep)/binsPerImage;
+        shiftPerImage = (azimuthalStep > 0) ? binsPerImage : -binsPerImage;
+        angles = (int)Math.round(360/angularStep);
+        innerRadius = Math.max(0, (int)Math.floor(minRadius/radialStep));
+        radii = (int)Math.ceil(maxRadius/radialStep) + 1 - innerRadius;
+        //Sector has one bin of margin on both sides for bins containing points at its border
+        int sectorBins = (int)Math.ceil(angularWidth/angularStep) + 3;
+        if((angularWidth >= 360) || (sectorBins >= angles)){
+            firstAngle = 0;
+            sectorAngles = angles;
+        }
+        else{
+            int angle = ((int)Math.floor(startAngle/angularStep) - 1) % angles;
+            firstAngle = (angle < 0) ? angle + angles : angle;
+            sectorAngles = sectorBins;
+        }
+        if((long)radii*sectorAngles > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Polar grid of " + radii + " x " + sectorAngles + " points is too large.");
+        boolean hasIntensities = aggregation != HKprojection.Aggregation.COUNT;
+        boolean hasCounts = (aggregation == HKprojection.Aggregation.MEAN) || (aggregation == HKprojection.Aggregation.COUNT);
+        intensities = hasIntensities ? new float[radii*sectorAngles] : null;
+        weights = hasCounts ? new float[radii*sectorAngles] : null;
+    }
+
+    /**
+     * Returns the number of angular bins in one azimuthal step, such that the arc of
+     * one bin at the largest radius is not longer than the radial step and the full
+     * circle contains integer number of bins
+     * @param azimuthalStep angular step between images in degrees
+     * @param maxRadius the largest radius in radial steps
+     * @return number of bins or 0 if there is no such number
+     */
+    public static int getBinsPerImage(double azimuthalStep, double maxRadius){
+        if(azimuthalStep == 0)
+            return 0;
+        double step = Math.abs(azimuthalStep);
+        int minBins = Math.max(1, (int)Math.ceil(step*Math.PI/180*maxRadius));
+        for(int bins = minBins; bins <= MAX_SUBDIVISION*minBins; bins++){
+            double circle = 360*bins/step;
+            if(Math.abs(circle - Math.round(circle)) < 1e-6*circle)
+                return bins;
+        }
+        return 0;
+    }
+
+    public HKprojection.Aggregation getAggregation(){
+        return aggregation;
+    }
+
+    public double getLatticeRatio(){
+        return latticeRatio;
+    }
+
+    /**
+     * @return number of radial bins of the sector
+     */
+    public int getRadii(){
+        return radii;
+    }
+
+    /**
+     * @return the first radial bin of the sector counted from the origin
+     */
+    public int getInnerRadius(){
+        return innerRadius;
+    }
+
+    /**
+     * @return number of angular bins of the sector
+     */
+    public int getAngles(){
+        return sectorAngles;
+    }
+
+    /**
+     * @return the first angular bin of the sector counted from zero angle
+     */
+    public int getFirstAngle(){
+        return firstAngle;
+    }
+
+    public double getRadialStep(){
+        return radialStep;
+    }
+
+    public double getAngularStep(){
+        return angularStep;
+    }
+
+    /**
+     * @return size of grid in bytes
+     */
+    public long getDataSize(){
+        return 4L*radii*sectorAngles*(((intensities != null) ? 1 : 0) + ((weights != null) ? 1 : 0));
+    }
+
+    /**
+     * @return empty grid of the same size and aggregation mode, e.g. private
+     *         accumulator of one worker thread
+     */
+    public PolarHKGrid createEmptyCopy(){
+        return new PolarHKGrid(this);
+    }
+
+    private PolarHKGrid(PolarHKGrid template){
+        angles = template.angles;
+        innerRadius = template.innerRadius;
+        radii = template.radii;
+        firstAngle = template.firstAngle;
+        sectorAngles = template.sectorAngles;
+        radialStep = template.radialStep;
+        angularStep = template.angularStep;
+        shiftPerImage = template.shiftPerImage;
+        latticeRatio = template.latticeRatio;
+        aggregation = template.aggregation;
+        intensities = (template.intensities != null) ? new float[template.intensities.length] : null;
+        weights = (template.weights != null) ? new float[template.weights.length] : null;
+    }
+
+    /**
+     * Calculates bins of detector row pixels at zero azimuthal angle
+     * @param h h-coordinates of pixels at zero azimuthal angle
+     * @param k k-coordinates of pixels at zero azimuthal angle
+     * @param radialOffsets array which is filled with indices of the first bins of
+     *        pixel radii (-1 if pixel is outside of the grid)
+     * @param angleIndices array which is filled with angular bins of pixels in the full circle
+     */
+    public void getRowBins(double[] h, double[] k, int[] radialOffsets, int[] angleIndices){
+        for(int x = 0; x < radialOffsets.length; x++){
+            double y = latticeRatio*k[x];
+            int radius = (int)Math.round(Math.sqrt(h[x]*h[x] + y*y)/radialStep) - innerRadius;
+            if((radius < 0) || (radius >= radii)){
+                radialOffsets[x] = -1;
+                angleIndices[x] = 0;
+                continue;
+            }
+            radialOffsets[x] = radius*sectorAngles;
+            int angle = (int)Math.round(Math.toDegrees(Math.atan2(y, h[x]))/angularStep) % angles;
+            angleIndices[x] = (angle < 0) ? angle + angles : angle;
+        }
+    }
+
+    /**
+     * Adds intensities of detector row of the image. Rotation of sample by the image
+     * angle shifts angular bins of pixels back by the number of bins in image angle.
+     * @param radialOffsets radial offsets of pixels calculated by getRowBins()
+     * @param angleIndices angular bins of pixels calculated by getRowBins()
+     * @param pixels intensities of pixels (array can be longer than the row)
+     * @param image number of the image counted from zero azimuthal angle
+     */
+    public void addRow(int[] radialOffsets, int[] angleIndices, double[] pixels, long image){
+        int shift = (int)((image*shiftPerImage) % angles);
+        for(int x = 0; x < radialOffsets.length; x++){
+            if(radialOffsets[x] < 0)
+                continue;
+            float intensity = (float)pixels[x];
+            if(Float.isNaN(intensity) || ((aggregation == HKprojection.Aggregation.MAX) && (intensity <= 0)))
+                continue;
+            int angle = getSectorAngle(angleIndices[x], shift);
+            if(angle < 0)
+                continue;
+            int index = radialOffsets[x] + angle;
+            switch(aggregation){
+                case MAX:
+                    if(intensities[index] < intensity)
+                        intensities[index] = intensity;
+                    break;
+                case SUM:
+                    intensities[index] += intensity;
+                    break;
+                case MEAN:
+                    intensities[index] += intensity;
+                    weights[index]++;
+                    break;
+                default:
+                    weights[index]++;
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Returns the angular bin in the sector of the bin shifted by the image angle
+     * @param angle angular bin in the full circle at zero azimuthal angle
+     * @param shift shift of the image from -angles to angles (exclusive)
+     * @return bin counted from the start of the sector or -1 if it is outside of the sector
+     */
+    private int getSectorAngle(int angle, int shift){
+        angle -= shift + firstAngle; //From -2*angles to 2*angles
+        if(angle < 0)
+            angle += angles;
+        if(angle < 0)
+            angle += angles;
+        else if(angle >= angles)
+            angle -= angles;
+        return (angle < sectorAngles) ? angle : -1;
+    }
+
+    /**
+     * Merges other grid of the same size and aggregation mode into this one:
+     * maxima are compared, sums and counts are added
+     * @param other grid created by createEmptyCopy()
+     */
+    public void merge(PolarHKGrid other){
+        if(aggregation == HKprojection.Aggregation.MAX){
+            for(int i = 0; i < intensities.length; i++){
+                if(intensities[i] < other.intensities[i])
+                    intensities[i] = other.intensities[i];
+            }
+            return;
+        }
+        if(intensities != null){
+            for(int i = 0; i < intensities.length; i++){
+                intensities[i] += other.intensities[i];
+            }
+        }
+        if(weights != null){
+            for(int i = 0; i < weights.length; i++){
+                weights[i] += other.weights[i];
+            }
+        }
+    }
+
+    /**
+     * @return index of the bin containing point (h;k) or -1 if it is outside of the grid
+     */
+    public int getBin(double h, double k){
+        double y = latticeRatio*k;
+        int radius = (int)Math.round(Math.sqrt(h*h + y*y)/radialStep) - innerRadius;
+        if((radius < 0) || (radius >= radii))
+            return -1;
+        int angle = (int)Math.round(Math.toDegrees(Math.atan2(y, h))/angularStep) % angles;
+        angle = getSectorAngle((angle < 0) ? angle + angles : angle, 0);
+        return (angle < 0) ? -1 : radius*sectorAngles + angle;
+    }
+
+    /**
+     * @return maximal or summed intensity of the bin (0 for COUNT)
+     */
+    public float getIntensity(int bin){
+        return (intensities == null) ? 0 : intensities[bin];
+    }
+
+    /**
+     * @return number of pixels in the bin, fractional if pixels are split (0 for MAX and SUM)
+     */
+    public float getWeight(int bin){
+        return (weights == null) ? 0 : weights[bin];
+    }
+
+    /**
+     * @return area of the bin in the orthogonal basis (h, a1/a2*k)
+     */
+    public double getBinArea(int bin){
+        int radius = bin/sectorAngles + innerRadius;
+        if(radius == 0)
+            return Math.PI*radialStep*radialStep/4/angles;
+        return radius*radialStep*radialStep*Math.toRadians(angularStep);
+    }
+
+    /**
+     * Calculates the sparse matrix which splits detector row pixels over bins at zero
+     * azimuthal angle. Footprint of a pixel is the box in polar coordinates bounding
+     * its corners, which are the middles between the pixel and its neighbours, widened
+     * by the rotation of sample during the image (one azimuthal step). The pixel is split
+     * over the bins overlapping its footprint proportionally to the overlapping part of
+     * the footprint. Parts of footprint outside of the grid are lost.
+     * @param h h-coordinates at zero azimuthal angle of pixels of the row above (h[0]),
+     *        the row itself (h[1]) and the row below (h[2])
+     * @param k k-coordinates of the same pixels
+     */
+    public SplitRow getRowSplitting(double[][] h, double[][] k){
+        int width = h[1].length;
+        double[][] y = new double[3][width];
+        for(int z = 0; z < 3; z++){
+            for(int x = 0; x < width; x++){
+                y[z][x] = latticeRatio*k[z][x];
+            }
+        }
+        SplitRow row = new SplitRow(width);
+        double[] radiusWeights = new double[MAX_SPLIT_BINS], angleWeights = new double[MAX_SPLIT_BINS];
+        for(int x = 0; x < width; x++){
+            row.starts[x] = row.size;
+            double radius = Math.sqrt(h[1][x]*h[1][x] + y[1][x]*y[1][x]);
+            double angle = Math.toDegrees(Math.atan2(y[1][x], h[1][x]));
+            double minRadius = radius, maxRadius = radius, minAngle = angle, maxAngle = angle;
+            for(int t = 0; t < 4; t++){
+                int dx = (t < 2) ? -1 : 1, dz = (t%2 == 0) ? 0 : 2; //Rows above and below are 0 and 2
+                double cornerH = (getValue(h[1], x, 0) + getValue(h[1], x, dx) + getValue(h[dz], x, 0) + getValue(h[dz], x, dx))/4;
+                double cornerY = (getValue(y[1], x, 0) + getValue(y[1], x, dx) + getValue(y[dz], x, 0) + getValue(y[dz], x, dx))/4;
+                double cornerRadius = Math.sqrt(cornerH*cornerH + cornerY*cornerY);
+                double cornerAngle = Math.toDegrees(Math.atan2(cornerY, cornerH)) - angle;
+                cornerAngle = angle + cornerAngle - 360*Math.round(cornerAngle/360);
+                minRadius = Math.min(minRadius, cornerRadius);
+                maxRadius = Math.max(maxRadius, cornerRadius);
+                minAngle = Math.min(minAngle, cornerAngle);
+                maxAngle = Math.max(maxAngle, cornerAngle);
+            }
+            minAngle -= angularStep*Math.abs(shiftPerImage)/2; //Rotation during the image
+            maxAngle += angularStep*Math.abs(shiftPerImage)/2;
+            int radiusBins = getOverlaps(minRadius, maxRadius, radialStep, radiusWeights);
+            int angleBins = getOverlaps(minAngle, maxAngle, angularStep, angleWeights);
+            int startRadius = (int)Math.round(minRadius/radialStep);
+            int startAngle = (int)Math.round(minAngle/angularStep);
+            if((radiusBins == 0) || (angleBins == 0) || (radiusBins*angleBins > MAX_SPLIT_BINS)){ //Pixel is not split
+                radiusBins = angleBins = 1;
+                radiusWeights[0] = angleWeights[0] = 1;
+                startRadius = (int)Math.round(radius/radialStep);
+                startAngle = (int)Math.round(angle/angularStep);
+            }
+            for(int r = 0; r < radiusBins; r++){
+                int radiusIndex = startRadius + r - innerRadius;
+                if(radiusIndex < 0)
+                    continue;
+                if(radiusIndex >= radii)
+                    break;
+                for(int a = 0; a < angleBins; a++){
+                    int angleIndex = (startAngle + a) % angles;
+                    row.add(radiusIndex*sectorAngles, (angleIndex < 0) ? angleIndex + angles : angleIndex,
+                            (float)(radiusWeights[r]*angleWeights[a]));
+                }
+            }
+        }
+        row.starts[width] = row.size;
+        return row;
+    }
+
+    /**
+     * @return value of array at x + dx, values outside of array are extrapolated linearly
+     */
+    private static double getValue(double[] values, int x, int dx){
+        if((x + dx >= 0) && (x + dx < values.length))
+            return values[x + dx];
+        if((x - dx >= 0) && (x - dx < values.length))
+            return 2*values[x] - values[x - dx];
+        return values[x];
+    }
+
+    /**
+     * Calculates which parts of the interval fall into bins of given size, the first
+     * bin is the one containing min
+     * @param parts array which is filled with parts of interval in bins
+     * @return number of bins or 0 if there are more than parts.length bins
+     */
+    private static int getOverlaps(double min, double max, double step, double[] parts){
+        int first = (int)Math.round(min/step);
+        int last = (int)Math.round(max/step);
+        if(last - first >= parts.length)
+            return 0;
+        if(max - min < 1e-9*step){
+            parts[0] = 1;
+            return 1;
+        }
+        for(int b = first; b <= last; b++){
+            parts[b - first] = (Math.min(max, (b + 0.5)*step) - Math.max(min, (b - 0.5)*step))/(max - min);
+        }
+        return last - first + 1;
+    }
+
+    /**
+     * Adds intensities of detector row of the image, pixels are split over bins by the
+     * sparse matrix calculated by getRowSplitting(). Bins keep the maximal intensity
+     * of pixels covering them, sums of intensities or numbers of pixels weighted by
+     * the covered parts.
+     * @param row splitting of row pixels at zero azimuthal angle
+     * @param pixels intensities of pixels (array can be longer than the row)
+     * @param image number of the image counted from zero azimuthal angle
+     */
+    public void addRow(SplitRow row, double[] pixels, long image){
+        int shift = (int)((image*shiftPerImage) % angles);
+        for(int x = 0; x < row.getWidth(); x++){
+            float intensity = (float)pixels[x];
+            if(Float.isNaN(intensity) || ((aggregation == HKprojection.Aggregation.MAX) && (intensity <= 0)))
+                continue;
+            for(int e = row.starts[x]; e < row.starts[x + 1]; e++){
+                int angle = getSectorAngle(row.angleIndices[e], shift);
+                if(angle < 0)
+                    continue;
+                int index = row.radialOffsets[e] + angle;
+                float weight = row.weights[e];
+                switch(aggregation){
+                    case MAX:
+                        if(intensities[index] < intensity)
+                            intensities[index] = intensity;
+                        break;
+                    case SUM:
+                        intensities[index] += weight*intensity;
+                        break;
+                    case MEAN:
+                        intensities[index] += weight*intensity;
+                        weights[index] += weight;
+                        break;
+                    default:
+                        weights[index] += weight;
+                        break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sparse matrix (compressed sparse rows) splitting pixels of one detector row
+     * over bins at zero azimuthal angle: pixel x covers bins from starts[x] to
+     * starts[x + 1] (exclusive), bin is given by radial offset and angular index
+     */
+    public static class SplitRow {
+        private final int[] starts; // Position of the first bin of each pixel, starts[width] is the number of bins
+        private int[] radialOffsets; // Indices of the first bins of radii
+        private int[] angleIndices; // Angular bins at zero azimuthal angle
+        private float[] weights; // Parts of pixels in bins
+        private int size; // Number of bins of all pixels
+
+        private SplitRow(int width){
+            starts = new int[width + 1];
+            radialOffsets = new int[4*width];
+            angleIndices = new int[4*width];
+            weights = new float[4*width];
+        }
+
+        private void add(int radialOffset, int angleIndex, float weight){
+            if(size == weights.length){
+                radialOffsets = Arrays.copyOf(radialOffsets, 2*size);
+                angleIndices = Arrays.copyOf(angleIndices, 2*size);
+                weights = Arrays.copyOf(weights, 2*size);
+            }
+            radialOffsets[size] = radialOffset;
+            angleIndices[size] = angleIndex;
+            weights[size] = weight;
+            size++;
+        }
+
+        /**
+         * @return number of pixels in the row
+         */
+        public int getWidth(){
+            return starts.length - 1;
+        }
+
+        /**
+         * @return average number of bins covered by one pixel
+         */
+        public double getBinsPerPixel(){
+            return (double)size/getWidth();
+        }
+
+        /**
+         * @return size of matrix in bytes
+         */
+        public long getDataSize(){
+            return 4L*starts.length + 12L*weights.length;
+        }
+    }
+}
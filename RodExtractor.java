@@ -234,13 +234,18 @@ public class RodExtractor {
                 //The y'th coordinate of center of current block (counting from upper left corner)
                 rod.x[blockCounter] = lineCoordinates[i - Math.round((float)extractionStep/2)][0];
                 rod.z[blockCounter] = lineCoordinates[i - Math.round((float)extractionStep/2)][1];
-                double[] hkl = null;
+                double lValue = 0;
                 try{
-                    hkl = experiment.labToHKL( rod.x[blockCounter], rod.z[blockCounter], 0);
+                    //L-value doesn't depend on azimuthal angle, so it is taken from the geometry map
+                    GeometryMap map = experiment.getGeometryMap();
+                    if(map.contains(rod.x[blockCounter], rod.z[blockCounter]))
+                        lValue = map.getL(rod.x[blockCounter], rod.z[blockCounter]);
+                    else
+                        lValue = experiment.labToHKL( rod.x[blockCounter], rod.z[blockCounter], 0)[2];
                 }
                 catch(Exception e){
                 }
-                rod.inPlaneRodProfiles[blockCounter][0] = hkl[2];
+                rod.inPlaneRodProfiles[blockCounter][0] = lValue;
                 blockCounter++;
                 loopCnt = 0;
             }
@@ -328,7 +333,13 @@ public class RodExtractor {
                 rod.WriteValue("L", cnt, rod.inPlaneRodProfiles[i][0]);
                 
                 rod.WriteValue("INT", cnt, intI);
-                rod.WriteValue("STR", cnt, Math.sqrt(intI/experiment.getTotalCorrectionFactor(rod.x[i], rod.z[i])));
+                CorrectionMap corrections = experiment.getCorrectionMap();
+                double correctionFactor;
+                if(corrections.contains(rod.x[i], rod.z[i]))
+                    correctionFactor = corrections.getFactor(rod.x[i], rod.z[i]);
+                else
+                    correctionFactor = experiment.getTotalCorrectionFactor(rod.x[i], rod.z[i]);
+                rod.WriteValue("STR", cnt, Math.sqrt(intI/correctionFactor));
                 rod.WriteValue("ERR", cnt, fittingError);
             }                    
             catch(Exception e){
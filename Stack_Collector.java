@@ -93,6 +93,7 @@ public class Stack_Collector implements PlugIn{
             frame.setVisible(true);
             
             stack = new ImageStack((int)(width*scaleFactor), (int)(height*scaleFactor));
+            FrameOrientation orientation = new FrameOrientation(rotation, flipHorizontally, false);
             ImageProcessor imp;
             for (int i = 0; i < chosenFiles.length; i++ ) {
                 if(i == chosenFiles.length)
@@ -101,13 +102,10 @@ public class Stack_Collector implements PlugIn{
                     percent = Math.round(((float)100/(float)(chosenFiles.length))*(float)(i));
                 
                 ImageProcessor ip = (new ImagePlus(chosenFiles[i].getAbsolutePath())).getProcessor();
-                ip.rotate(rotation);
-                if(flipHorizontally)
-                    ip.flipHorizontal();
-
-                //Cropping and reducing resolution
-                ip.setRoi(0, 0, (int)width, (int)height);               
-                imp = ip.crop();
+                //Rotation, flip and cropping in one pass
+                imp = orientation.apply(ip, (int)width, (int)height);
+                
+                //Reducing resolution
                 if(!(imp.getBitDepth() == (int)bitDepth)){
                     switch((int)bitDepth){
                         case 8:
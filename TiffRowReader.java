@@ -0,0 +1,299 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ *
+ * @author Mikhail Shipilin
+ * Reads separate rows of uncompressed TIFF image without decoding the whole image.
+ * Offsets of strips (or tiles) are parsed once when the file is opened, then only
+ * the parts of file containing requested rows are read.
+ *
+ * Rows are returned as they would be after rotation and flips described by
+ * FrameOrientation, the transformation is mapped back to the coordinates of
+ * the stored image. If the image is rotated by
+ * 90 or 270 degrees, a row of the result is a column of the stored image, which
+ * crosses all strips, so the whole image data is read (but still only requested
+ * pixels are decoded).
+ */
+public class TiffRowReader {
+    // TIFF tags
+    private static final int IMAGE_WIDTH = 256, IMAGE_LENGTH = 257, BITS_PER_SAMPLE = 258, COMPRESSION = 259,
+                             PHOTOMETRIC_INTERPRETATION = 262, STRIP_OFFSETS = 273, SAMPLES_PER_PIXEL = 277,
+                             ROWS_PER_STRIP = 278, TILE_WIDTH = 322, TILE_LENGTH = 323, TILE_OFFSETS = 324,
+                             SAMPLE_FORMAT = 339;
+    // TIFF field types
+    private static final int BYTE = 1, SHORT = 3, LONG = 4;
+
+    private final RandomAccessFile file;
+    private ByteOrder order;
+    private int width, height; // Size of stored image
+    private int bitsPerSample = 1, samplesPerPixel = 1, sampleFormat = 1, compression = 1, photometric = 1;
+    private int blockWidth, blockHeight; // Size of strip (block width = image width) or tile
+    private long[] blockOffsets; // Offsets of strips or tiles in file
+    private FrameOrientation orientation;
+    private byte[] buffer = new byte[0];
+
+    private TiffRowReader(String path) throws IOException{
+        file = new RandomAccessFile(path, "r");
+    }
+
+    /**
+     * Opens the file and parses the first image directory
+     * @param path path to TIFF file
+     * @param orientation rotation and flips of image
+     * @return reader or null if the file can't be read by rows: it is not TIFF, it is
+     *         compressed, it has unsupported pixel type, or rotation can't be done
+     *         without interpolation
+     */
+    public static TiffRowReader open(String path, FrameOrientation orientation) throws IOException{
+        TiffRowReader reader = new TiffRowReader(path);
+        try{
+            if(!reader.readHeader() || !orientation.isIndexMapping(reader.width, reader.height)){
+                reader.close();
+                return null;
+            }
+        }
+        catch(IOException e){
+            reader.close();
+            throw e;
+        }
+        reader.orientation = orientation;
+        return reader;
+    }
+
+    /**
+     * Returns width of image after rotation (ImageProcessor.rotate() doesn't change the size)
+     */
+    public int getWidth(){
+        return width;
+    }
+
+    public int getHeight(){
+        return height;
+    }
+
+    /**
+     * Reads rows of rotated and flipped image
+     * @param rows vertical positions of rows from top left corner
+     * @param pixels array of length width*rows.length, row rows[j] is written
+     *        starting from index j*width
+     */
+    public void readRows(int[] rows, float[] pixels) throws IOException{
+        int[] sourceLines = new int[rows.length]; // Rows or columns of stored image
+        for(int j = 0; j < rows.length; j++){
+            if((rows[j] < 0) || (rows[j] >= height))
+                throw new IOException("Row " + rows[j] + " is outside of image.");
+            sourceLines[j] = orientation.getSourceLine(rows[j], width, height);
+        }
+        float[][] source = new float[rows.length][];
+        if(!orientation.isTransposed()){
+            for(int j = 0; j < rows.length; j++){
+                source[j] = new float[width];
+                readSourceRow(sourceLines[j], source[j]);
+            }
+        }
+        else{
+            for(int j = 0; j < rows.length; j++){
+                source[j] = new float[height];
+            }
+            readSourceColumns(sourceLines, source);
+        }
+        //Position of every pixel of resulting row along the source row or column
+        for(int x = 0; x < width; x++){
+            int position = orientation.getSourcePosition(x, width);
+            for(int j = 0; j < rows.length; j++){
+                pixels[j*width + x] = source[j][position];
+            }
+        }
+    }
+
+    public void close() throws IOException{
+        file.close();
+    }
+
+    /**
+     * Reads row of stored image from all strips or tiles crossing it
+     */
+    private void readSourceRow(int y, float[] row) throws IOException{
+        int blocksAcross = (width + blockWidth - 1)/blockWidth;
+        int bytesPerPixel = bitsPerSample/8;
+        for(int bx = 0; bx < blocksAcross; bx++){
+            int x0 = bx*blockWidth;
+            int n = Math.min(blockWidth, width - x0);
+            long offset = blockOffsets[(y/blockHeight)*blocksAcross + bx] + (long)(y % blockHeight)*blockWidth*bytesPerPixel;
+            read(offset, n*bytesPerPixel);
+            decode(0, n, row, x0, 1);
+        }
+    }
+
+    /**
+     * Reads columns of stored image. Each strip or tile containing any of
+     * the columns is read only once.
+     */
+    private void readSourceColumns(int[] columns, float[][] lines) throws IOException{
+        int blocksAcross = (width + blockWidth - 1)/blockWidth;
+        int blocksDown = (height + blockHeight - 1)/blockHeight;
+        int bytesPerPixel = bitsPerSample/8;
+        for(int by = 0; by < blocksDown; by++){
+            int y0 = by*blockHeight;
+            int n = Math.min(blockHeight, height - y0);
+            for(int bx = 0; bx < blocksAcross; bx++){
+                int x0 = bx*blockWidth;
+                boolean needed = false;
+                for(int column : columns){
+                    needed |= (column >= x0) && (column < x0 + blockWidth);
+                }
+                if(!needed)
+                    continue;
+                read(blockOffsets[by*blocksAcross + bx], n*blockWidth*bytesPerPixel);
+                for(int j = 0; j < columns.length; j++){
+                    if((columns[j] >= x0) && (columns[j] < x0 + blockWidth))
+                        decode(columns[j] - x0, n, lines[j], y0, blockWidth);
+                }
+            }
+        }
+    }
+
+    private void read(long offset, int length) throws IOException{
+        if(buffer.length < length)
+            buffer = new byte[length];
+        file.seek(offset);
+        file.readFully(buffer, 0, length);
+    }
+
+    /**
+     * Converts pixels from buffer to float values in the same way as ImageJ does
+     * @param first index of the first pixel in buffer
+     * @param n number of pixels
+     * @param values array for results
+     * @param offset index of the first result in values
+     * @param stride distance between pixels in buffer
+     */
+    private void decode(int first, int n, float[] values, int offset, int stride){
+        ByteBuffer data = ByteBuffer.wrap(buffer).order(order);
+        for(int i = 0; i < n; i++){
+            int index = first + i*stride;
+            switch(bitsPerSample){
+                case 8:
+                    values[offset + i] = buffer[index] & 0xff;
+                    break;
+                case 16:
+                    values[offset + i] = data.getShort(2*index) & 0xffff;
+                    break;
+                default:
+                    if(sampleFormat == 3)
+                        values[offset + i] = data.getFloat(4*index);
+                    else if(sampleFormat == 2)
+                        values[offset + i] = data.getInt(4*index);
+                    else
+                        values[offset + i] = data.getInt(4*index) & 0xffffffffL;
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Parses header and the first image directory
+     * @return false if the image can't be read by rows
+     */
+    private boolean readHeader() throws IOException{
+        byte[] header = new byte[8];
+        if(file.length() < header.length)
+            return false;
+        file.readFully(header);
+        if((header[0] == 'I') && (header[1] == 'I'))
+            order = ByteOrder.LITTLE_ENDIAN;
+        else if((header[0] == 'M') && (header[1] == 'M'))
+            order = ByteOrder.BIG_ENDIAN;
+        else
+            return false;
+        ByteBuffer headerBuffer = ByteBuffer.wrap(header).order(order);
+        if(headerBuffer.getShort(2) != 42)
+            return false; // Not TIFF or BigTIFF
+        long directoryOffset = headerBuffer.getInt(4) & 0xffffffffL;
+
+        file.seek(directoryOffset);
+        byte[] count = new byte[2];
+        file.readFully(count);
+        int entriesNumber = ByteBuffer.wrap(count).order(order).getShort() & 0xffff;
+        byte[] entries = new byte[12*entriesNumber];
+        file.readFully(entries);
+        ByteBuffer directory = ByteBuffer.wrap(entries).order(order);
+        long[] tileOffsets = null;
+        int tileWidth = 0, tileLength = 0, rowsPerStrip = Integer.MAX_VALUE;
+        for(int i = 0; i < entriesNumber; i++){
+            int tag = directory.getShort(12*i) & 0xffff;
+            switch(tag){
+                case IMAGE_WIDTH: width = (int)readValues(directory, 12*i)[0]; break;
+                case IMAGE_LENGTH: height = (int)readValues(directory, 12*i)[0]; break;
+                case BITS_PER_SAMPLE: bitsPerSample = (int)readValues(directory, 12*i)[0]; break;
+                case COMPRESSION: compression = (int)readValues(directory, 12*i)[0]; break;
+                case PHOTOMETRIC_INTERPRETATION: photometric = (int)readValues(directory, 12*i)[0]; break;
+                case STRIP_OFFSETS: blockOffsets = readValues(directory, 12*i); break;
+                case SAMPLES_PER_PIXEL: samplesPerPixel = (int)readValues(directory, 12*i)[0]; break;
+                case ROWS_PER_STRIP: rowsPerStrip = (int)readValues(directory, 12*i)[0]; break;
+                case TILE_WIDTH: tileWidth = (int)readValues(directory, 12*i)[0]; break;
+                case TILE_LENGTH: tileLength = (int)readValues(directory, 12*i)[0]; break;
+                case TILE_OFFSETS: tileOffsets = readValues(directory, 12*i); break;
+                case SAMPLE_FORMAT: sampleFormat = (int)readValues(directory, 12*i)[0]; break;
+                default: break;
+            }
+        }
+        if(tileOffsets != null){
+            blockOffsets = tileOffsets;
+            blockWidth = tileWidth;
+            blockHeight = tileLength;
+        }
+        else{
+            blockWidth = width;
+            blockHeight = Math.min(rowsPerStrip, height);
+        }
+        //Only uncompressed grayscale images with the pixel types converted by ImageJ without calibration
+        if((compression != 1) || (samplesPerPixel != 1) || (photometric != 1) || (blockOffsets == null) ||
+           (width <= 0) || (height <= 0) || (blockWidth <= 0) || (blockHeight <= 0))
+            return false;
+        if(!((bitsPerSample == 8) && (sampleFormat == 1)) &&
+           !((bitsPerSample == 16) && (sampleFormat == 1)) &&
+           !(bitsPerSample == 32))
+            return false;
+        int blocksNumber = ((width + blockWidth - 1)/blockWidth)*((height + blockHeight - 1)/blockHeight);
+        return blockOffsets.length >= blocksNumber;
+    }
+
+    /**
+     * Reads values of directory entry which can be stored in the entry itself or
+     * at the offset in file
+     * @param directory buffer with directory entries
+     * @param position position of entry in buffer
+     */
+    private long[] readValues(ByteBuffer directory, int position) throws IOException{
+        int type = directory.getShort(position + 2) & 0xffff;
+        int count = directory.getInt(position + 4);
+        int size = (type == SHORT) ? 2 : (type == LONG) ? 4 : (type == BYTE) ? 1 : 0;
+        if((size == 0) || (count <= 0))
+            throw new IOException("Unsupported TIFF field type " + type);
+        ByteBuffer values;
+        if(size*count <= 4){
+            values = directory.duplicate().order(order);
+            values.position(position + 8);
+            values = values.slice().order(order);
+        }
+        else{
+            byte[] data = new byte[size*count];
+            file.seek(directory.getInt(position + 8) & 0xffffffffL);
+            file.readFully(data);
+            values = ByteBuffer.wrap(data).order(order);
+        }
+        long[] result = new long[count];
+        for(int i = 0; i < count; i++){
+            switch(size){
+                case 1: result[i] = values.get(i) & 0xff; break;
+                case 2: result[i] = values.getShort(2*i) & 0xffff; break;
+                default: result[i] = values.getInt(4*i) & 0xffffffffL; break;
+            }
+        }
+        return result;
+    }
+}
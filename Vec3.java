@@ -0,0 +1,45 @@
+/**
+ *
+ * @author Mikhail Shipilin
+ * Vector of three components. Objects are immutable, all operations return
+ * new vectors, which are small enough to be eliminated by JIT (escape analysis)
+ * when they don't leave the method.
+ */
+public final class Vec3 {
+    public final double x, y, z;
+
+    public Vec3(double x, double y, double z){
+        this.x = x;
+        this.y = y;
+        this.z = z;
+    }
+
+    public Vec3 add(Vec3 v){
+        return new Vec3(x + v.x, y + v.y, z + v.z);
+    }
+
+    public Vec3 subtract(Vec3 v){
+        return new Vec3(x - v.x, y - v.y, z - v.z);
+    }
+
+    public Vec3 multiplyByConstant(double constant){
+        return new Vec3(x*constant, y*constant, z*constant);
+    }
+
+    public double dot(Vec3 v){
+        return x*v.x + y*v.y + z*v.z;
+    }
+
+    public double norm(){
+        return Math.sqrt(x*x + y*y + z*z);
+    }
+
+    /**
+     * Writes components to the array starting from index offset
+     */
+    public void toArray(double[] array, int offset){
+        array[offset] = x;
+        array[offset + 1] = y;
+        array[offset + 2] = z;
+    }
+}
@@ -0,0 +1,244 @@
+import ij.IJ;
+import ij.ImageStack;
+import ij.gui.GenericDialog;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import java.awt.Dimension;
+import java.io.File;
+import java.text.DecimalFormat;
+import javax.swing.JFrame;
+import javax.swing.JProgressBar;
+import javax.swing.UIManager;
+import javax.swing.WindowConstants;
+
+/**
+ *
+ * @author Mikhail Shipilin
+ * Transforms all pixels of all images of the scan to reciprocal space and bins
+ * them into a three-dimensional grid of voxels (see VoxelVolume). Images are read
+ * only once, the volume is stored outside of Java heap.
+ */
+public class VolumeExtractor {
+    private double imageRotation = 90; //In case we need to rotate image for further processing
+    private boolean imageFlipHoriz = true,
+                    imageFlipVert = false; //In case we need to flip image for further processing
+    private double azimuthalStep = 0.1; //Angular step between images
+    private int firstImage = 1; //The number of first image in treated sequence
+    private boolean applyCorrections = false; // Divide pixels intensities by total correction factors before binning
+    private int prefetchDepth = FramePrefetcher.DEFAULT_DEPTH; //Number of images read ahead
+    private double voxelSize = 0.02; //Size of voxel in reciprocal units
+    private double[] boundaryHKLValues = new double[6]; //Boundary values minH maxH minK maxK minL maxL
+
+    private String[] imageAbsolutePaths;
+    private ExperimentHandler experiment;
+    private VoxelVolume volume;
+    private String stackName;
+
+    private JFrame pBarFrame;// Frame for progress bar
+    private JProgressBar pBar; //Progress bar 0 - 100%
+
+    protected VolumeExtractor(ExperimentHandler ex){
+        experiment = ex;
+    }
+
+    /**
+     * Returns hk-slices of the volume as a virtual stack
+     */
+    protected ImageStack getImageStack(){
+        return volume.createStack();
+    }
+
+    protected String getStackName(){
+        return stackName;
+    }
+
+    protected VoxelVolume getVolume(){
+        return volume;
+    }
+
+    private void CreateAndShowGUI(){
+        //Bring window style in accordance with operating system
+        try {
+            UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
+        }
+        catch (Exception e) {
+        }
+
+        //Define parameters of progress bar
+        pBarFrame = new JFrame("Progress");
+        pBarFrame.setResizable(false);
+        pBarFrame.setDefaultCloseOperation(WindowConstants.DO_NOTHING_ON_CLOSE);
+        pBar = new JProgressBar(0, 100);//Progress bar 0 - 100%
+        pBar.setStringPainted(true);
+        pBar.setPreferredSize(new Dimension(170,23));
+
+        pBarFrame.add(pBar);
+        pBarFrame.pack();
+        pBarFrame.setLocationByPlatform(true);
+        pBarFrame.setVisible(true);
+
+        pBar.setValue(0);
+        pBar.update(pBar.getGraphics());
+    }
+
+    private void DisposeGUI(){
+        pBar = null;
+        pBarFrame.dispose();
+    }
+
+    protected boolean extractVolume(File[] files){
+        imageAbsolutePaths = new String[files.length];
+        for(int i = 0; i < files.length; i++){
+            imageAbsolutePaths[i] = files[i].getAbsolutePath();
+        }
+        try{
+            findBoundaryCoordinates();
+        }
+        catch(Exception e){
+            IJ.error("Geometry of experiment can't be calculated." + e.getMessage());
+            return false;
+        }
+        if(!showDialog())
+            return false;
+
+        CreateAndShowGUI();
+        try{
+            File file = File.createTempFile("hesxrd_volume", ".raw");
+            file.deleteOnExit();
+            volume = new VoxelVolume(boundaryHKLValues, voxelSize, file);
+            calculateVolume();
+        }
+        catch(Exception e){
+            DisposeGUI();
+            IJ.error("The error occured while extracting 3D data." + e.getMessage());
+            return false;
+        }
+        DisposeGUI();
+
+        DecimalFormat d3 = new DecimalFormat("#.###");
+        stackName = "Reciprocal space volume, voxel " + d3.format(voxelSize) + " RLU";
+        IJ.log(stackName + ": " + volume.getSizeH() + " x " + volume.getSizeK() + " x " + volume.getSizeL() + " voxels, H " +
+               d3.format(boundaryHKLValues[0]) + " - " + d3.format(boundaryHKLValues[1]) + ", K " +
+               d3.format(boundaryHKLValues[2]) + " - " + d3.format(boundaryHKLValues[3]) + ", L " +
+               d3.format(boundaryHKLValues[4]) + " - " + d3.format(boundaryHKLValues[5]));
+        IJ.log("Voxels are stored in " + volume.getFile().getAbsolutePath() + " (32-bit real, little-endian)");
+        return true;
+    }
+
+    /**
+     * Finds the region of reciprocal space covered by detector during full rotation.
+     * Rotation in hk-plane keeps h^2 + (a1/a2*k)^2 constant, so the largest value
+     * over detector pixels gives limits of h and k.
+     */
+    private void findBoundaryCoordinates() throws Exception{
+        GeometryMap map = experiment.getGeometryMap();
+        double ratio = experiment.getInPlaneLatticeRatio();
+        double maxRadius = 0, maxL = 0;
+        for(int z = 0; z < map.getHeight(); z++){
+            for(int x = 0; x < map.getWidth(); x++){
+                double h = map.getH(x, z), k = map.getK(x, z);
+                maxRadius = Math.max(maxRadius, h*h + ratio*ratio*k*k);
+                maxL = Math.max(maxL, map.getL(x, z));
+            }
+        }
+        maxRadius = Math.sqrt(maxRadius);
+        boundaryHKLValues[0] = -1*maxRadius;
+        boundaryHKLValues[1] = maxRadius;
+        boundaryHKLValues[2] = -1*maxRadius/ratio;
+        boundaryHKLValues[3] = maxRadius/ratio;
+        boundaryHKLValues[4] = 0;
+        boundaryHKLValues[5] = maxL;
+    }
+
+    private boolean showDialog(){
+        GenericDialog gd = new GenericDialog("3D data extraction options");
+        gd.addNumericField("Rotate clockwise:", imageRotation, 2);
+        gd.addCheckbox("Flip horizontally", imageFlipHoriz);
+        gd.addCheckbox("Flip vertically", imageFlipVert);
+        gd.addNumericField("Azimuthal step:", azimuthalStep, 1);
+        gd.addNumericField("Number of first loaded image", firstImage, 0);
+        gd.addNumericField("Images read ahead", prefetchDepth, 0);
+        gd.addCheckbox("Apply correction factors", applyCorrections);
+        gd.addMessage("Region of reciprocal space:");
+        gd.addNumericField("Min H:", boundaryHKLValues[0], 2);
+        gd.addNumericField("Max H:", boundaryHKLValues[1], 2);
+        gd.addNumericField("Min K:", boundaryHKLValues[2], 2);
+        gd.addNumericField("Max K:", boundaryHKLValues[3], 2);
+        gd.addNumericField("Min L:", boundaryHKLValues[4], 2);
+        gd.addNumericField("Max L:", boundaryHKLValues[5], 2);
+        gd.addNumericField("Voxel size (in RLU):", voxelSize, 3);
+        gd.showDialog();
+        if (gd.wasCanceled())
+            return false;
+        imageRotation = gd.getNextNumber();
+        imageFlipHoriz = gd.getNextBoolean();
+        imageFlipVert = gd.getNextBoolean();
+        azimuthalStep = gd.getNextNumber();
+        firstImage = (int)gd.getNextNumber();
+        prefetchDepth = Math.max(1, (int)gd.getNextNumber());
+        applyCorrections = gd.getNextBoolean();
+        for(int i = 0; i < boundaryHKLValues.length; i++){
+            boundaryHKLValues[i] = gd.getNextNumber();
+        }
+        voxelSize = gd.getNextNumber();
+        if((voxelSize <= 0) || (boundaryHKLValues[1] <= boundaryHKLValues[0]) ||
+           (boundaryHKLValues[3] <= boundaryHKLValues[2]) || (boundaryHKLValues[5] <= boundaryHKLValues[4])){
+            IJ.error("Region of reciprocal space or voxel size is improperly selected");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Bins all pixels of all images into the volume in one pass through images.
+     * Coordinates of pixels are obtained by rotation of the geometry map for
+     * each image.
+     */
+    private void calculateVolume() throws Exception{
+        GeometryMap map = experiment.getGeometryMap();
+        CorrectionMap corrections = applyCorrections ? experiment.getCorrectionMap() : null;
+        final FrameOrientation orientation = new FrameOrientation(imageRotation, imageFlipHoriz, imageFlipVert);
+        int width = map.getWidth(), height = map.getHeight();
+        double[] rowH = new double[width], rowK = new double[width], rowL = new double[width];
+        double[] pixels = new double[width];
+
+        FramePrefetcher images = new FramePrefetcher(imageAbsolutePaths, prefetchDepth, prefetchDepth){
+            @Override
+            protected ImageProcessor decode(String path) throws Exception{
+                ImageProcessor ip = super.decode(path);
+                return orientation.apply(ip, ip.getWidth(), ip.getHeight());
+            }
+        };
+        try{
+            for(int i = 0; i < imageAbsolutePaths.length; i++){
+                ImageProcessor ip = images.next();
+                double omega = (firstImage-1)*azimuthalStep + i*azimuthalStep;
+                int rowLength = Math.min(width, ip.getWidth());
+                for(int z = 0; z < Math.min(height, ip.getHeight()); z++){
+                    map.getRowHK(z, omega, rowH, rowK);
+                    map.getRowL(z, rowL);
+                    if(ip instanceof FloatProcessor){
+                        float[] data = (float[])ip.getPixels();
+                        for(int x = 0; x < rowLength; x++){
+                            pixels[x] = data[z*ip.getWidth() + x];
+                        }
+                    }
+                    else{
+                        for(int x = 0; x < rowLength; x++){
+                            pixels[x] = ip.getPixelValue(x, z);
+                        }
+                    }
+                    if(corrections != null)
+                        corrections.correctRow(z, pixels);
+                    volume.addDataSet(rowH, rowK, rowL, pixels, rowLength);
+                }
+                pBar.setValue(Math.round(100f*(i + 1)/imageAbsolutePaths.length));
+                pBar.update(pBar.getGraphics());
+            }
+        }
+        finally{
+            images.close();
+        }
+        volume.flush();
+    }
+}
@@ -0,0 +1,177 @@
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ *
+ * @author Mikhail Shipilin
+ * Three-dimensional grid of voxels in reciprocal space (h,k,l). Intensities are
+ * stored outside of Java heap in the memory mapped file, which is split into
+ * chunks of whole hk-slices (one buffer can't be larger than 2 GB), so the size
+ * of volume is limited only by disk space. Each voxel keeps the maximum intensity
+ * of pixels falling into it, the same as HKprojection.
+ *
+ * The file contains 32-bit little-endian floats in order h, k, l (h changes
+ * fastest) and can be imported to ImageJ as raw data.
+ */
+public class VoxelVolume {
+    private static final long CHUNK_SIZE = 1L << 30; // Maximal size of one buffer in bytes
+
+    private final int sizeH, sizeK, sizeL; // Number of voxels along each direction
+    private final double minH, minK, minL; // Coordinates of the center of the first voxel
+    private final double voxelSize; // Size of voxel in reciprocal units
+    private final int slicesPerChunk; // Number of hk-slices in one buffer
+    private final MappedByteBuffer[] chunks;
+    private final File file;
+
+    /**
+     * Creates empty volume
+     * @param hklLimits boundary values minH maxH minK maxK minL maxL
+     * @param voxelSize size of voxel in reciprocal units
+     * @param file file for voxels data (it is overwritten)
+     */
+    public VoxelVolume(double[] hklLimits, double voxelSize, File file) throws IOException{
+        this.voxelSize = voxelSize;
+        this.file = file;
+        minH = hklLimits[0];
+        minK = hklLimits[2];
+        minL = hklLimits[4];
+        sizeH = (int)Math.round((hklLimits[1] - hklLimits[0])/voxelSize) + 1;
+        sizeK = (int)Math.round((hklLimits[3] - hklLimits[2])/voxelSize) + 1;
+        sizeL = (int)Math.round((hklLimits[5] - hklLimits[4])/voxelSize) + 1;
+        long sliceSize = 4L*sizeH*sizeK;
+        if(sliceSize > CHUNK_SIZE)
+            throw new IOException("hk-slice of the volume is too large, voxel size should be increased.");
+        slicesPerChunk = (int)Math.min(sizeL, CHUNK_SIZE/sliceSize);
+        chunks = new MappedByteBuffer[(sizeL + slicesPerChunk - 1)/slicesPerChunk];
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try{
+            raf.setLength(sliceSize*sizeL);
+            FileChannel channel = raf.getChannel();
+            for(int i = 0; i < chunks.length; i++){
+                int slices = Math.min(slicesPerChunk, sizeL - i*slicesPerChunk);
+                chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, i*slicesPerChunk*sliceSize, slices*sliceSize);
+                chunks[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+        finally{
+            raf.close(); // Mapping stays valid after the file is closed
+        }
+    }
+
+    public int getSizeH(){
+        return sizeH;
+    }
+
+    public int getSizeK(){
+        return sizeK;
+    }
+
+    public int getSizeL(){
+        return sizeL;
+    }
+
+    public File getFile(){
+        return file;
+    }
+
+    /**
+     * @return size of voxels data in bytes
+     */
+    public long getDataSize(){
+        return 4L*sizeH*sizeK*sizeL;
+    }
+
+    /**
+     * @return l-coordinate of the slice
+     * @param slice index of hk-slice from 0
+     */
+    public double getLValue(int slice){
+        return minL + slice*voxelSize;
+    }
+
+    /**
+     * Adds pixels to the volume, voxel keeps the maximum intensity. Pixels outside
+     * of the volume are skipped.
+     * @param hArray h-coordinates of pixels
+     * @param kArray k-coordinates of pixels
+     * @param lArray l-coordinates of pixels
+     * @param intensityArray intensities of pixels
+     * @param length number of pixels
+     */
+    public void addDataSet(double[] hArray, double[] kArray, double[] lArray, double[] intensityArray, int length){
+        for(int j = 0; j < length; j++){
+            int h = (int)Math.round((hArray[j] - minH)/voxelSize);
+            int k = (int)Math.round((kArray[j] - minK)/voxelSize);
+            int l = (int)Math.round((lArray[j] - minL)/voxelSize);
+            if((h < 0) || (h >= sizeH) || (k < 0) || (k >= sizeK) || (l < 0) || (l >= sizeL))
+                continue;
+            MappedByteBuffer chunk = chunks[l/slicesPerChunk];
+            int index = 4*(((l % slicesPerChunk)*sizeK + k)*sizeH + h);
+            float intensity = (float)intensityArray[j];
+            if(chunk.getFloat(index) < intensity)
+                chunk.putFloat(index, intensity);
+        }
+    }
+
+    /**
+     * Returns hk-slice as an image, oriented as the in-plane projections (h to the
+     * right, k upwards)
+     * @param slice index of hk-slice from 0
+     */
+    public ImageProcessor getSliceProcessor(int slice){
+        MappedByteBuffer chunk = chunks[slice/slicesPerChunk];
+        int offset = (slice % slicesPerChunk)*sizeK*sizeH;
+        float[] pixels = new float[sizeH*sizeK];
+        for(int k = 0; k < sizeK; k++){
+            for(int h = 0; h < sizeH; h++){
+                pixels[(sizeK - 1 - k)*sizeH + h] = chunk.getFloat(4*(offset + k*sizeH + h));
+            }
+        }
+        return new FloatProcessor(sizeH, sizeK, pixels);
+    }
+
+    /**
+     * Returns the stack of hk-slices which are read from the volume when they are
+     * displayed, so the volume is not copied to Java heap
+     */
+    public ImageStack createStack(){
+        return new VirtualStack(sizeH, sizeK, null, file.getParent()){
+            @Override
+            public ImageProcessor getProcessor(int n){
+                return getSliceProcessor(n - 1);
+            }
+
+            @Override
+            public Object getPixels(int n){
+                return getProcessor(n).getPixels();
+            }
+
+            @Override
+            public int getSize(){
+                return sizeL;
+            }
+
+            @Override
+            public String getSliceLabel(int n){
+                return "L = " + String.format("%.3f", getLValue(n - 1));
+            }
+        };
+    }
+
+    /**
+     * Writes changed data to the file
+     */
+    public void flush(){
+        for(MappedByteBuffer chunk : chunks){
+            chunk.force();
+        }
+    }
+}